@@ -6,6 +6,7 @@ import java.io.*;
 import java.util.*;
 import diskmgr.*;
 import global.*;
+import logmgr.*;
 
 public class BufMgr implements GlobalConst{
 
@@ -99,10 +100,11 @@ public class BufMgr implements GlobalConst{
         
 
         //read the page  (using the appropriate method from {diskmgr} package)
+        long pageLsn = -1;
         if(!emptyPage) {
           DB db = SystemDefs.JavabaseDB;
           //System.err.println("Reading page from disk: " + pin_pgid.pid + " buf val: " + bufPool[freeFrame].getpage());
-          db.read_page(pin_pgid, bufPool[freeFrame]);
+          pageLsn = db.read_page_lsn(pin_pgid, bufPool[freeFrame]);
         }
 
         //update file descriptor
@@ -110,6 +112,8 @@ public class BufMgr implements GlobalConst{
         frameDesc[freeFrame].setPageId(pig);
         frameDesc[freeFrame].setPinCount(1);
         frameDesc[freeFrame].setDirty(false);
+        frameDesc[freeFrame].setPageLsn(pageLsn);
+        frameDesc[freeFrame].setRecLsn(-1);
 
         //update hash table
         hashTable.insert(pig, freeFrame);
@@ -169,6 +173,12 @@ public class BufMgr implements GlobalConst{
       //If so, this call should set the dirty bit for this frame.
       if (dirty) {
         frameDesc[frameIndex].setDirty(true);
+        //for the dirty page table: the first change since the page was
+        //clean is no earlier than the current end of the log
+        LogMgr log = SystemDefs.JavabaseLog;
+        if (frameDesc[frameIndex].getRecLsn() < 0 && log != null) {
+          frameDesc[frameIndex].setRecLsn(log.getEndLsn());
+        }
       }
     
   } catch (Exception e) {
@@ -177,6 +187,33 @@ public class BufMgr implements GlobalConst{
   }
 
 
+  /**
+   * Unpin a page changed under the write-ahead log.  Besides what
+   * unpinPage(PageId, boolean) does, this notes the LSN of the log record
+   * describing the change, and the page will not be written to disk
+   * before the log has been flushed up to that record.  The LSN is also
+   * stored with the page on disk.
+   *
+   * @param PageId_in_a_DB page number in the minibase.
+   * @param dirty the dirty bit of the frame
+   * @param lsn LSN of the last log record for the change, or -1
+   * @throws PageUnpinnedException
+   */
+
+  public void unpinPage(PageId PageId_in_a_DB, boolean dirty, long lsn) throws PageUnpinnedException {
+    int frameIndex = hashTable.getFrameNumber(PageId_in_a_DB);
+    if (frameIndex != -1 && lsn >= 0) {
+      if (lsn > frameDesc[frameIndex].getPageLsn()) {
+        frameDesc[frameIndex].setPageLsn(lsn);
+      }
+      if (dirty && frameDesc[frameIndex].getRecLsn() < 0) {
+        frameDesc[frameIndex].setRecLsn(lsn);
+      }
+    }
+    unpinPage(PageId_in_a_DB, dirty);
+  }
+
+
   /**
    * Allocate new pages.
    * Call DB object to allocate a run of new pages and
@@ -245,6 +282,8 @@ public class BufMgr implements GlobalConst{
         frameDesc[frameIndex].setPageId(new PageId(-1));
         frameDesc[frameIndex].setPinCount(0);
         frameDesc[frameIndex].setDirty(false);
+        frameDesc[frameIndex].setPageLsn(-1);
+        frameDesc[frameIndex].setRecLsn(-1);
         DB db = SystemDefs.JavabaseDB;
         try {
           db.deallocate_page(globalPageId);
@@ -275,9 +314,20 @@ public class BufMgr implements GlobalConst{
     int frameIndex = hashTable.getFrameNumber(pageid);
     if(frameIndex != -1) {
       DB db = SystemDefs.JavabaseDB;
+      LogMgr log = SystemDefs.JavabaseLog;
       try {
-        db.write_page(pageid, bufPool[frameIndex]);
+        //a space-map page is rebuilt from the DB's free-extent map first,
+        //which may make it depend on later log records
+        long lsn = db.sync_map_page(pageid, bufPool[frameIndex],
+                                    frameDesc[frameIndex].getPageLsn());
+        frameDesc[frameIndex].setPageLsn(lsn);
+        //write-ahead rule: the log records for the page go to disk first
+        if (log != null && lsn >= 0) {
+          log.flush(lsn);
+        }
+        db.write_page(pageid, bufPool[frameIndex], lsn);
         frameDesc[frameIndex].setDirty(false);
+        frameDesc[frameIndex].setRecLsn(-1);
         //System.err.println("flushing page: " + pageid.pid+ " frame index: " + frameIndex);
       } catch (Exception e) {
         throw new DiskMgrException(null, "Buffer Mangager: write page failed");
@@ -293,13 +343,127 @@ public class BufMgr implements GlobalConst{
   
     public void flushAllPages() throws DiskMgrException {
 
+    //page allocation is tracked in memory by DB, so bring the space map
+    //pages up to date before writing them out
+    SystemDefs.JavabaseDB.flush_space_map();
+
+    //write the dirty pages in one batch, so the DB can order the writes
+    //and, with double write on, force them together
+    List<Integer> dirtyFrames = new ArrayList<>();
+    long maxLsn = -1;
     for(int i = 0; i < this.numBuffers; i++) {
       if(frameDesc[i].isDirty()) {
-        try {
-          flushPage(frameDesc[i].getPageId());
-        } catch (Exception e) {
-          throw new DiskMgrException(null, "Buffer Manager: flush page failed"); 
-        }
+        dirtyFrames.add(i);
+        maxLsn = Math.max(maxLsn, frameDesc[i].getPageLsn());
+      }
+    }
+    if (dirtyFrames.isEmpty()) {
+      return;
+    }
+
+    PageId[] pageIds = new PageId[dirtyFrames.size()];
+    Page[] pages = new Page[dirtyFrames.size()];
+    long[] lsns = new long[dirtyFrames.size()];
+    for (int j = 0; j < pageIds.length; j++) {
+      int i = dirtyFrames.get(j);
+      pageIds[j] = frameDesc[i].getPageId();
+      pages[j] = bufPool[i];
+      lsns[j] = frameDesc[i].getPageLsn();
+    }
+
+    try {
+      //write-ahead rule for the whole batch
+      LogMgr log = SystemDefs.JavabaseLog;
+      if (log != null && maxLsn >= 0) {
+        log.flush(maxLsn);
+      }
+      SystemDefs.JavabaseDB.write_pages(pageIds, pages, lsns);
+    } catch (Exception e) {
+      throw new DiskMgrException(e, "Buffer Manager: flush page failed"); 
+    }
+
+    for (int i : dirtyFrames) {
+      frameDesc[i].setDirty(false);
+      frameDesc[i].setRecLsn(-1);
+    }
+  }
+
+
+  /**
+   * Gets the LSN of a page in the buffer pool: that of the last log record
+   * applied to it.
+   *
+   * @param pageid the page number in the database.
+   * @return the page's LSN, or -1 if it has none or is not in the pool.
+   */
+
+  public long getPageLsn(PageId pageid) {
+    int frameIndex = hashTable.getFrameNumber(pageid);
+    return (frameIndex != -1) ? frameDesc[frameIndex].getPageLsn() : -1;
+  }
+
+
+  /**
+   * Gets the dirty page table: every dirty page in the pool changed since
+   * the log was opened, with the LSN from which the log holds all of its
+   * changes not yet on disk (its recLSN).
+   *
+   * @return map of page number to recLSN.
+   */
+
+  public Map<Integer, Long> getDirtyPageTable() {
+    Map<Integer, Long> dpt = new HashMap<>();
+    for (int i = 0; i < numBuffers; i++) {
+      if (frameDesc[i].isDirty() && frameDesc[i].getRecLsn() >= 0) {
+        dpt.put(frameDesc[i].getPageId().pid, frameDesc[i].getRecLsn());
+      }
+    }
+    return dpt;
+  }
+
+
+  /**
+   * Tells whether a page is in the buffer pool.
+   *
+   * @param pageid the page number in the database.
+   * @return true if the page has a frame in the pool.
+   */
+
+  public boolean isInPool(PageId pageid) {
+    return hashTable.getFrameNumber(pageid) != -1;
+  }
+
+
+  /**
+   * Tells whether a page is pinned in the buffer pool.
+   *
+   * @param pageid the page number in the database.
+   * @return true if the page is in the pool with a pin count above 0.
+   */
+
+  public boolean isPinned(PageId pageid) {
+    int frameIndex = hashTable.getFrameNumber(pageid);
+    return frameIndex != -1 && frameDesc[frameIndex].getPinCount() > 0;
+  }
+
+
+  /**
+   * Drops every unpinned page numbered firstPid or above from the buffer
+   * pool without writing it, for when the database has been truncated.
+   *
+   * @param firstPid the first page number to drop.
+   */
+
+  public void discardPages(int firstPid) {
+    for (int i = 0; i < numBuffers; i++) {
+      PageId pid = frameDesc[i].getPageId();
+      if (pid.pid >= firstPid && frameDesc[i].getPinCount() == 0) {
+        hashTable.remove(pid);
+        fifoQueue.remove((Integer)i);
+        frameDesc[i].setPageId(new PageId(-1));
+        frameDesc[i].setDirty(false);
+        frameDesc[i].setPageLsn(-1);
+        frameDesc[i].setRecLsn(-1);
       }
     }
   }
@@ -6,6 +6,8 @@ public class FrameDesc {
     private PageId pageId;
     private int pinCount;
     private boolean dirty;
+    private long pageLsn = -1;
+    private long recLsn = -1;
     //private String replacementPolicy;
 
     public FrameDesc() {
@@ -43,6 +45,18 @@ public class FrameDesc {
     public void setDirty(boolean dirty) {
         this.dirty = dirty;
     }
+    public long getPageLsn() {
+        return pageLsn;
+    }
+    public void setPageLsn(long pageLsn) {
+        this.pageLsn = pageLsn;
+    }
+    public long getRecLsn() {
+        return recLsn;
+    }
+    public void setRecLsn(long recLsn) {
+        this.recLsn = recLsn;
+    }
     public boolean isFree() {
         return this.pageId.pid == -1;
     }
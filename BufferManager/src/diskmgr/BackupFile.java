@@ -0,0 +1,141 @@
+/* File BackupFile.java */
+
+package diskmgr;
+
+import java.io.*;
+import global.*;
+
+/**
+ * A file holding a backup of a database: a header saying whether it is a
+ * full or an incremental backup, how many pages the database had and the
+ * checkpoint it was taken at, then the backed-up pages, each with its page
+ * id and LSN, and an end mark.  A file without its end mark is an
+ * unfinished backup and cannot be restored.
+ */
+class BackupFile implements GlobalConst {
+
+  private static final int MAGIC = 0x4d42424b;
+
+  public static final byte FULL = 0;
+  public static final byte INCREMENTAL = 1;
+
+  public byte kind;
+  public int numPages;
+  public long checkpointLsn;
+
+  private String fname;
+  private DataOutputStream out;
+  private DataInputStream in;
+
+  private BackupFile() { }
+
+  /**
+   * Start writing a backup.
+   * @param fname the backup file
+   * @param kind FULL or INCREMENTAL
+   * @param numPages pages in the database
+   * @param checkpointLsn LSN of the checkpoint the backup starts from, or -1
+   * @exception IOException I/O errors
+   */
+  public static BackupFile create(String fname, byte kind, int numPages,
+                                  long checkpointLsn)
+    throws IOException
+    {
+      BackupFile b = new BackupFile();
+      b.fname = fname;
+      b.kind = kind;
+      b.numPages = numPages;
+      b.checkpointLsn = checkpointLsn;
+      b.out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(fname), 64 * 1024));
+      b.out.writeInt(MAGIC);
+      b.out.writeByte(kind);
+      b.out.writeInt(numPages);
+      b.out.writeLong(checkpointLsn);
+      return b;
+    }
+
+  /**
+   * Open a backup for reading.
+   * @param fname the backup file
+   * @exception IOException I/O errors, or not a backup file
+   */
+  public static BackupFile open(String fname)
+    throws IOException
+    {
+      BackupFile b = new BackupFile();
+      b.in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(fname), 64 * 1024));
+      if (b.in.readInt() != MAGIC) {
+        b.in.close();
+        throw new IOException(fname + " is not a backup");
+      }
+      b.kind = b.in.readByte();
+      b.numPages = b.in.readInt();
+      b.checkpointLsn = b.in.readLong();
+      return b;
+    }
+
+  /**
+   * Add a page to the backup.
+   * @exception IOException I/O errors
+   */
+  public void put(int pid, long lsn, byte [] page)
+    throws IOException
+    {
+      out.writeInt(pid);
+      out.writeLong(lsn);
+      out.write(page, 0, MINIBASE_PAGESIZE);
+    }
+
+  /**
+   * Read the next page of the backup.
+   * @param pid set to the page's id
+   * @param page set to the page's contents
+   * @return the page's LSN
+   * @exception EOFException the backup is unfinished
+   * @exception IOException I/O errors
+   */
+  public long next(PageId pid, Page page)
+    throws IOException
+    {
+      pid.pid = in.readInt();
+      if (pid.pid < 0)
+        return -1;
+      long lsn = in.readLong();
+      in.readFully(page.getpage(), 0, MINIBASE_PAGESIZE);
+      return lsn;
+    }
+
+  /**
+   * Write the end mark, force the backup to disk and close it.
+   * @exception IOException I/O errors
+   */
+  public void finish()
+    throws IOException
+    {
+      out.writeInt(-1);
+      out.flush();
+      out.close();
+      out = null;
+      try (RandomAccessFile f = new RandomAccessFile(fname, "rw")) {
+        f.getFD().sync();
+      }
+    }
+
+  /**
+   * Close the backup, finished or not.
+   */
+  public void close()
+    {
+      try {
+        if (out != null)
+          out.close();
+        if (in != null)
+          in.close();
+      }
+      catch (IOException e) {
+        // nothing more to lose
+      }
+    }
+}
@@ -0,0 +1,363 @@
+/* File CompressedPageStore.java */
+
+package diskmgr;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import global.*;
+
+/**
+ * Page storage for a database with page compression turned on.  Each page
+ * is deflated on write and stored in a run of fixed-size sectors in a data
+ * file; a location file holds, for every page id, where the page's sectors
+ * start, how many bytes it occupies and its checksum.  Pages that do not
+ * shrink are stored as they are.
+ *
+ * A page is never written over its old copy: every write goes to a new
+ * run of sectors, so a crash leaves either the old copy or the new one
+ * whole.  Pages are written in batches: the runs of every page in the
+ * batch are written first, the data file is forced once, then the
+ * locations are written and the location file is forced once.  The old
+ * runs are only handed out again after that, so a location that did not
+ * reach disk never points at sectors of another page.  Which sectors are
+ * in use is rebuilt from the location file when the store is opened.
+ */
+class CompressedPageStore implements GlobalConst {
+
+  /** unit of space in the data file, in bytes */
+  private static final int SECTOR_SIZE = 128;
+
+  /** bytes of a location entry: first sector, stored length, checksum */
+  private static final int ENTRY_SIZE = 12;
+
+  /** old runs kept before the location file is forced to free them */
+  private static final int MAX_PENDING = 64;
+
+  private RandomAccessFile dataFile;
+  private RandomAccessFile locFile;
+  private boolean checksums;
+
+  /** sectors holding some page */
+  private BitSet usedSectors = new BitSet();
+
+  /** where to start looking for free sectors */
+  private int searchFrom = 0;
+
+  /** runs no longer used, as first sector and count, still kept until
+   *  the location file is forced */
+  private int [] pending = new int[2 * MAX_PENDING];
+  private int numPending = 0;
+
+  /** locations of the pages written since the last commit, by page id */
+  private LinkedHashMap<Integer, byte []> staged =
+    new LinkedHashMap<Integer, byte []>();
+
+  private DBStats stats;
+
+  /** bytes the last page read or written takes in the data file */
+  int lastLength = 0;
+
+  private Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+  private Inflater inflater = new Inflater(true);
+  private CRC32C crc = new CRC32C();
+  private byte [] buf = new byte[MINIBASE_PAGESIZE + SECTOR_SIZE];
+  private byte [] entry = new byte[ENTRY_SIZE];
+
+  /**
+   * Open the store kept in the given files, creating them if needed.
+   * @param dataName the file holding page sectors
+   * @param locName the file holding page locations
+   * @param checksums true to check each page against its stored checksum
+   * @param stats where the forces of the files are counted
+   * @exception IOException I/O errors
+   */
+  public CompressedPageStore(String dataName, String locName, boolean checksums,
+                             DBStats stats)
+    throws IOException
+    {
+      dataFile = new RandomAccessFile(dataName, "rw");
+      locFile = new RandomAccessFile(locName, "rw");
+      this.checksums = checksums;
+      this.stats = stats;
+
+      // Rebuild the sector map from the locations of all stored pages.
+      long numEntries = locFile.length() / ENTRY_SIZE;
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(locFile.getFD())));
+      locFile.seek(0);
+      for (long i = 0; i < numEntries; ++i) {
+        int sector = in.readInt();
+        int length = in.readInt();
+        in.readInt();
+        if (length > 0)
+          usedSectors.set(sector, sector + sectors(length));
+      }
+    }
+
+  /**
+   * Close the files of the store.
+   * @exception IOException I/O errors
+   */
+  public void close()
+    throws IOException
+    {
+      commit();
+      sync();
+      dataFile.close();
+      locFile.close();
+      deflater.end();
+      inflater.end();
+    }
+
+  /**
+   * Read a page into the given buffer.  A page never written reads as
+   * zeroes.
+   * @param pid the page id
+   * @param page buffer of MINIBASE_PAGESIZE bytes
+   * @return false if the page failed its checksum
+   * @exception IOException I/O errors or a damaged page
+   */
+  public boolean read(int pid, byte [] page)
+    throws IOException
+    {
+      if (!readEntry(pid) || getInt(entry, 4) == 0) {
+        Arrays.fill(page, 0, MINIBASE_PAGESIZE, (byte) 0);
+        lastLength = 0;
+        return true;
+      }
+
+      int sector = getInt(entry, 0);
+      int length = getInt(entry, 4);
+      dataFile.seek((long) sector * SECTOR_SIZE);
+      dataFile.readFully(buf, 0, length);
+      lastLength = length;
+
+      if (length == MINIBASE_PAGESIZE) {
+        System.arraycopy(buf, 0, page, 0, MINIBASE_PAGESIZE);
+      }
+      else {
+        inflater.reset();
+        inflater.setInput(buf, 0, length);
+        try {
+          if (inflater.inflate(page, 0, MINIBASE_PAGESIZE) != MINIBASE_PAGESIZE)
+            throw new IOException("compressed page " + pid + " is short");
+        }
+        catch (DataFormatException e) {
+          throw new IOException("compressed page " + pid + " is damaged");
+        }
+      }
+
+      return !checksums || checksum(page) == getInt(entry, 8);
+    }
+
+  /**
+   * Compress and store a page, as a batch of one.
+   * @param pid the page id
+   * @param page the MINIBASE_PAGESIZE bytes of the page
+   * @exception IOException I/O errors
+   */
+  public void write(int pid, byte [] page)
+    throws IOException
+    {
+      stage(pid, page);
+      commit();
+    }
+
+  /**
+   * Compress a page and write it to a new run of sectors.  The page's
+   * location is only written by the next commit(); until then reads still
+   * find the old copy.
+   * @param pid the page id
+   * @param page the MINIBASE_PAGESIZE bytes of the page
+   * @exception IOException I/O errors
+   */
+  public void stage(int pid, byte [] page)
+    throws IOException
+    {
+      deflater.reset();
+      deflater.setInput(page, 0, MINIBASE_PAGESIZE);
+      deflater.finish();
+      int length = deflater.deflate(buf, 0, buf.length);
+
+      // Not worth inflating later if it saves less than a sector.
+      if (!deflater.finished() || sectors(length) >= sectors(MINIBASE_PAGESIZE)) {
+        System.arraycopy(page, 0, buf, 0, MINIBASE_PAGESIZE);
+        length = MINIBASE_PAGESIZE;
+      }
+
+      // A page staged twice in a batch gives up the run staged first,
+      // which no location on disk points to.
+      byte [] newEntry = staged.get(pid);
+      if (newEntry != null)
+        free(getInt(newEntry, 0), sectors(getInt(newEntry, 4)));
+      else
+        newEntry = new byte[ENTRY_SIZE];
+
+      // The old run stays in use, so the new one never overlaps it.
+      int sector = allocate(sectors(length));
+      dataFile.seek((long) sector * SECTOR_SIZE);
+      dataFile.write(buf, 0, length);
+      lastLength = length;
+
+      putInt(newEntry, 0, sector);
+      putInt(newEntry, 4, length);
+      putInt(newEntry, 8, checksums ? checksum(page) : 0);
+      staged.put(pid, newEntry);
+    }
+
+  /**
+   * Make the pages staged since the last commit durable: force the data
+   * file once, write their locations, force the location file once, and
+   * free the runs they replaced.
+   * @exception IOException I/O errors
+   */
+  public void commit()
+    throws IOException
+    {
+      if (staged.isEmpty())
+        return;
+
+      sync(dataFile);
+      for (Map.Entry<Integer, byte []> e : staged.entrySet()) {
+        int pid = e.getKey();
+        if (readEntry(pid) && getInt(entry, 4) > 0)
+          retire(getInt(entry, 0), sectors(getInt(entry, 4)));
+        System.arraycopy(e.getValue(), 0, entry, 0, ENTRY_SIZE);
+        writeEntry(pid);
+      }
+      staged.clear();
+      sync(locFile);
+      freePending();
+    }
+
+  /**
+   * Drop a page, freeing its sectors.
+   * @param pid the page id
+   * @exception IOException I/O errors
+   */
+  public void release(int pid)
+    throws IOException
+    {
+      byte [] newEntry = staged.remove(pid);
+      if (newEntry != null)
+        free(getInt(newEntry, 0), sectors(getInt(newEntry, 4)));
+      if (!readEntry(pid) || getInt(entry, 4) == 0)
+        return;
+
+      int sector = getInt(entry, 0);
+      int count = sectors(getInt(entry, 4));
+      Arrays.fill(entry, (byte) 0);
+      writeEntry(pid);
+      retire(sector, count);
+    }
+
+  /**
+   * Force the location file, and free the runs of sectors that the
+   * locations on disk no longer point to.
+   * @exception IOException I/O errors
+   */
+  public void sync()
+    throws IOException
+    {
+      if (numPending == 0)
+        return;
+      sync(locFile);
+      freePending();
+    }
+
+  private void freePending()
+    {
+      for (int i = 0; i < numPending; ++i)
+        free(pending[2*i], pending[2*i + 1]);
+      numPending = 0;
+    }
+
+  /** Free a run of sectors once the location file has been forced. */
+  private void retire(int sector, int count)
+    throws IOException
+    {
+      if (numPending == MAX_PENDING) {
+        // The locations written so far must reach disk before their old
+        // runs are reused.
+        sync();
+      }
+      pending[2*numPending] = sector;
+      pending[2*numPending + 1] = count;
+      ++numPending;
+    }
+
+  /** Force a file to disk, counting the force. */
+  private void sync(RandomAccessFile f)
+    throws IOException
+    {
+      long start = System.nanoTime();
+      f.getFD().sync();
+      stats.sync(System.nanoTime() - start);
+    }
+
+  private int allocate(int count)
+    {
+      int start = usedSectors.nextClearBit(searchFrom);
+      while (true) {
+        int end = usedSectors.nextSetBit(start);
+        if (end < 0 || end - start >= count)
+          break;
+        start = usedSectors.nextClearBit(end);
+      }
+      usedSectors.set(start, start + count);
+      searchFrom = start + count;
+      return start;
+    }
+
+  private void free(int sector, int count)
+    {
+      usedSectors.clear(sector, sector + count);
+      if (sector < searchFrom)
+        searchFrom = sector;
+    }
+
+  private boolean readEntry(int pid)
+    throws IOException
+    {
+      long pos = (long) pid * ENTRY_SIZE;
+      if (pos + ENTRY_SIZE > locFile.length())
+        return false;
+      locFile.seek(pos);
+      locFile.readFully(entry);
+      return true;
+    }
+
+  private void writeEntry(int pid)
+    throws IOException
+    {
+      locFile.seek((long) pid * ENTRY_SIZE);
+      locFile.write(entry);
+    }
+
+  private int checksum(byte [] page)
+    {
+      crc.reset();
+      crc.update(page, 0, MINIBASE_PAGESIZE);
+      return (int) crc.getValue();
+    }
+
+  private static int sectors(int length)
+    {
+      return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+  private static int getInt(byte [] b, int off)
+    {
+      return ((b[off] & 0xff) << 24) | ((b[off+1] & 0xff) << 16)
+        | ((b[off+2] & 0xff) << 8) | (b[off+3] & 0xff);
+    }
+
+  private static void putInt(byte [] b, int off, int v)
+    {
+      b[off] = (byte) (v >>> 24);
+      b[off+1] = (byte) (v >>> 16);
+      b[off+2] = (byte) (v >>> 8);
+      b[off+3] = (byte) v;
+    }
+}
@@ -3,14 +3,71 @@
 package diskmgr;
 
 import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import bufmgr.*;
 import global.*;
+import logmgr.*;
 
 public class DB implements GlobalConst {
 
   
   private static final int bits_per_page = MAX_SPACE * 8;
   
+  private static final int default_growth_chunk = 1024;
+  
+  /** pages in each stripe unit when the database spans several files */
+  private static final int stripe_pages = 64;
+  
+  /** bytes stored after each page when page checksums are on */
+  private static final int checksum_size = 4;
+  
+  /** bytes stored after each page when page LSNs are on */
+  private static final int lsn_size = 8;
+  
+  /** bit in the first page's flags: pages carry a checksum trailer */
+  private static final int flag_page_checksums = 1;
+  
+  /** bit in the first page's flags: pages other than the first are
+   * compressed and kept in a CompressedPageStore */
+  private static final int flag_page_compression = 2;
+  
+  /** bit in the first page's flags: pages carry the LSN of the last log
+   * record applied to them */
+  private static final int flag_page_lsns = 4;
+  
+  /** files next to the DB file holding compressed pages and their
+   * locations */
+  private static final String compressed_pages_suffix = ".cpages";
+  private static final String compressed_locations_suffix = ".cloc";
+  
+  /** file next to the DB file that pages are written to before they are
+   * written in place, when double write is on */
+  private static final String double_write_suffix = ".dwb";
+  
+  /** most pages written to the double-write file at a time */
+  private static final int double_write_batch = 64;
+  
+  /** first word of a batch in the double-write file */
+  private static final int double_write_magic = 0x44574231;
+  
+  /** bytes of a batch's header: magic, page count, slot size, CRC32C */
+  private static final int double_write_header = 16;
+  
+  /** file next to the DB file holding the changed-page bitmap while the
+   * database is closed */
+  private static final String changed_pages_suffix = ".chg";
+  
+  /** pages a backup copies between letting writers in */
+  private static final int backup_chunk = 64;
+  
+  /** pages compact() moves between letting other threads in */
+  private static final int compact_batch = 64;
+  
   
   /** Open the database with the given name.
    *
@@ -27,10 +84,40 @@ public class DB implements GlobalConst {
 	   FileIOException,
 	   DiskMgrException {
     
+    openDB(fname, new String[0]);
+  }
+  
+  /** Open a database whose pages are striped over several files.  The
+   * files must be given in the order they were when the database was
+   * created.
+   *
+   * @param name DB_name, also the first data file
+   * @param stripe_fnames the other data files
+   *
+   * @exception IOException I/O errors
+   * @exception FileIOException file I/O error, or wrong number of files
+   * @exception InvalidPageNumberException invalid page number
+   * @exception DiskMgrException error caused by other layers
+   */
+  public void openDB( String fname, String [] stripe_fnames)
+    throws IOException, 
+	   InvalidPageNumberException, 
+	   FileIOException,
+	   DiskMgrException {
+    
     name = fname;
     
-    // Creaat a random access file
-    fp = new RandomAccessFile(fname, "rw");
+    // Creaat the random access files
+    open_data_files(stripe_fnames);
+    
+    // Put right any page, the first one included, torn by a crash while
+    // it was being written.
+    replay_double_write();
+    
+    // The first page starts at offset 0 whatever the page format, so it
+    // can be read before the format is known.
+    page_lsns = false;
+    set_page_checksums(false);
     
     PageId pageId = new PageId();
     Page apage = new Page();
@@ -44,8 +131,36 @@ public class DB implements GlobalConst {
     DBFirstPage firstpg = new DBFirstPage();
     firstpg.openPage(apage);
     num_pages = firstpg.getNumDBPages();
+    base_map_pages = firstpg.getNumMapPages();
+    int num_data_files = firstpg.getNumDataFiles();
+    page_lsns = (firstpg.getFlags() & flag_page_lsns) != 0;
+    set_page_checksums((firstpg.getFlags() & flag_page_checksums) != 0);
+    page_compression = (firstpg.getFlags() & flag_page_compression) != 0;
+    
+    // Databases written before the space map could grow keep their whole
+    // space map right after the first page.
+    if(base_map_pages == 0)
+      base_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
+    if(num_data_files == 0)
+      num_data_files = 1;
     
     unpinPage(pageId, false /* undirty*/);
+    
+    if(num_data_files != data_files.length)
+      {
+	closeDB();
+	throw new FileIOException(null, "DB has " + num_data_files
+				  + " data files, " + data_files.length
+				  + " given");
+      }
+    
+    if(page_compression)
+      open_page_store();
+    
+    load_changed_pages();
+    load_free_extents();
+    load_file_directory();
+    register_stats();
   }
   
   /** default constructor.
@@ -71,22 +186,60 @@ public class DB implements GlobalConst {
 	   FileIOException,
 	   DiskMgrException {
     
+    openDB(fname, num_pgs, new String[0]);
+  }
+  
+  /** Create a database whose pages are striped over several files, so
+   * that its I/O is spread over the devices holding them.  Consecutive
+   * runs of 64 pages go to the files in turn.
+   *
+   * @param name DB name, also the first data file
+   * @param num_pages number of pages in DB
+   * @param stripe_fnames the other data files
+   *
+   * @exception IOException I/O errors
+   * @exception InvalidPageNumberException invalid page number
+   * @exception FileIOException file I/O error
+   * @exception DiskMgrException error caused by other layers
+   */
+  public void openDB( String fname, int num_pgs, String [] stripe_fnames)
+    throws IOException, 
+	   InvalidPageNumberException,
+	   FileIOException,
+	   DiskMgrException {
+    
     name = new String(fname);
     num_pages = (num_pgs > 2) ? num_pgs : 2;
     
     File DBfile = new File(name);
     
     DBfile.delete();
+    for(int i = 0; i < stripe_fnames.length; ++i)
+      new File(stripe_fnames[i]).delete();
+    new File(name + compressed_pages_suffix).delete();
+    new File(name + compressed_locations_suffix).delete();
+    new File(name + double_write_suffix).delete();
+    
+    // Nothing has been backed up yet.
+    changed_pages = new BitSet();
+    changed_pages.set(0, num_pages);
+    mark_changed_pages_unsaved();
     
-    // Creaat a random access file
-    fp = new RandomAccessFile(fname, "rw");
+    // Creaat the random access files
+    open_data_files(stripe_fnames);
+    if(page_compression)
+      open_page_store();
     
-    // Make the file num_pages pages long, filled with zeroes.
-    fp.seek((long)(num_pages*MINIBASE_PAGESIZE-1));
-    fp.writeByte(0);
+    // Make the files num_pages pages long in all, filled with zeroes.
+    extend_data_files();
     
     // Initialize space map and directory pages.
     
+    // Calculate how many pages are needed for the space map.  Reserve pages
+    // 0 and 1 and as many additional pages for the space map as are needed.
+    int num_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
+    base_map_pages = num_map_pages;
+    
     // Initialize the first DB page
     Page apage = new Page();
     PageId pageId = new PageId();
@@ -96,33 +249,79 @@ public class DB implements GlobalConst {
     DBFirstPage firstpg = new DBFirstPage(apage);
     
     firstpg.setNumDBPages(num_pages);
+    firstpg.setNumMapPages(base_map_pages);
+    firstpg.setNumDataFiles(data_files.length);
+    firstpg.setFlags((page_checksums ? flag_page_checksums : 0)
+		     | (page_compression ? flag_page_compression : 0)
+		     | (page_lsns ? flag_page_lsns : 0));
     unpinPage(pageId, true /*dirty*/);
     
-    // Calculate how many pages are needed for the space map.  Reserve pages
-    // 0 and 1 and as many additional pages for the space map as are needed.
-    int num_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
-    
     set_bits(pageId, 1+num_map_pages, 1);
     
+    load_free_extents();
+    load_file_directory();
+    register_stats();
   }
   
   /** Close DB file.
    * @exception IOException I/O errors.
    */
   public void closeDB() throws IOException {
-    fp.close();
+    stop_scrubber();
+    unregister_stats();
+    save_space_map();
+    save_changed_pages();
+    for(int i = 0; i < data_files.length; ++i)
+      data_files[i].close();
+    if(page_store != null)
+      {
+	page_store.close();
+	page_store = null;
+      }
+    if(dwb_file != null)
+      {
+	dwb_file.close();
+	dwb_file = null;
+      }
   }
   
   
-  /** Destroy the database, removing the file that stores it. 
+  /** Write the space-map pages that allocations have changed since they
+   * were last flushed, so that a database closed without flushing the
+   * buffer pool does not lose its allocations.
+   */
+  private void save_space_map()
+    throws IOException {
+
+    if(dirty_map_pages.isEmpty())
+      return;
+    BitSet stale = (BitSet) dirty_map_pages.clone();
+    try {
+      flush_space_map();
+      for(int i = stale.nextSetBit(0); i >= 0; i = stale.nextSetBit(i+1))
+	SystemDefs.JavabaseBM.flushPage(new PageId(map_page_id(i)));
+    }
+    catch (DiskMgrException e) {
+      throw new IOException("DB.java: could not write the space map", e);
+    }
+  }
+  
+  /** Destroy the database, removing the files that store it. 
    * @exception IOException I/O errors.
    */
   public void DBDestroy() 
     throws IOException {
     
-    fp.close();
-    File DBfile = new File(name);
-    DBfile.delete();
+    closeDB();
+    for(int i = 0; i < data_file_names.length; ++i)
+      {
+	File DBfile = new File(data_file_names[i]);
+	DBfile.delete();
+      }
+    new File(name + compressed_pages_suffix).delete();
+    new File(name + compressed_locations_suffix).delete();
+    new File(name + double_write_suffix).delete();
+    new File(name + changed_pages_suffix).delete();
   }
   
   /** Read the contents of the specified page into a Page object
@@ -134,26 +333,102 @@ public class DB implements GlobalConst {
    * @exception FileIOException file I/O error
    * @exception IOException I/O errors
    */
-  public  void read_page(PageId pageno, Page apage)
+  public synchronized void read_page(PageId pageno, Page apage)
+    throws InvalidPageNumberException, 
+	   FileIOException, 
+	   InvalidChecksumException,
+	   IOException {
+
+    read_page_lsn(pageno, apage);
+  }
+  
+  /** Read a page, as read_page does, and return the LSN stored with it.
+   *
+   * @param pageno pageId which will be read
+   * @param apage page object which holds the contents of page
+   * @return the LSN of the last log record applied to the page, or -1 if
+   *   there is none or the database does not keep page LSNs
+   *
+   * @exception InvalidPageNumberException invalid page number
+   * @exception FileIOException file I/O error
+   * @exception IOException I/O errors
+   */
+  public synchronized long read_page_lsn(PageId pageno, Page apage)
     throws InvalidPageNumberException, 
 	   FileIOException, 
+	   InvalidChecksumException,
 	   IOException {
 
     if((pageno.pid < 0)||(pageno.pid >= num_pages))
       throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
     
+    long start = System.nanoTime();
+    long lsn = read_slot(pageno, apage);
+    stats.read(page_class(pageno.pid),
+	       (page_store != null && pageno.pid != 0) ? page_store.lastLength
+	       : page_slot_size,
+	       System.nanoTime() - start);
+    return lsn;
+  }
+  
+  /** Read a page from the compressed store or its data file.
+   */
+  private long read_slot(PageId pageno, Page apage)
+    throws FileIOException, 
+	   InvalidChecksumException,
+	   IOException {
+
+    if(page_store != null && pageno.pid != 0)
+      {
+	boolean ok;
+	try{
+	  ok = page_store.read(pageno.pid, apage.getpage());
+	}
+	catch (IOException e) {
+	  throw new FileIOException(e, "DB file I/O error");
+	}
+	if(!ok)
+	  {
+	    ++checksum_failures;
+	    throw new InvalidChecksumException(null, "DB page " + pageno.pid
+					       + " failed its checksum");
+	  }
+	return -1;
+      }
+    
     // Seek to the correct page
-    fp.seek((long)(pageno.pid *MINIBASE_PAGESIZE));
+    RandomAccessFile fp = seek_page(pageno.pid);
     
     // Read the appropriate number of bytes.
     byte [] buffer = apage.getpage();  //new byte[MINIBASE_PAGESIZE];
     try{
-      fp.read(buffer);
+      if(page_slot_size != MINIBASE_PAGESIZE)
+	{
+	  fp.read(slot_buf);
+	  System.arraycopy(slot_buf, 0, buffer, 0, MINIBASE_PAGESIZE);
+	}
+      else
+	fp.read(buffer);
     }
     catch (IOException e) {
       throw new FileIOException(e, "DB file I/O error");
     }
     
+    if(page_checksums && !checksum_ok(slot_buf))
+      {
+	++checksum_failures;
+	throw new InvalidChecksumException(null, "DB page " + pageno.pid
+					   + " failed its checksum");
+      }
+    
+    // The LSN is stored plus one so that a page never written reads as
+    // having none.
+    if(!page_lsns)
+      return -1;
+    long lsn = 0;
+    for(int i = 0; i < lsn_size; ++i)
+      lsn = (lsn << 8) | (slot_buf[MINIBASE_PAGESIZE + i] & 0xff);
+    return lsn - 1;
   }
   
   /** Write the contents in a page object to the specified page.
@@ -165,7 +440,26 @@ public class DB implements GlobalConst {
    * @exception FileIOException file I/O error
    * @exception IOException I/O errors
    */
-  public void write_page(PageId pageno, Page apage)
+  public synchronized void write_page(PageId pageno, Page apage)
+    throws InvalidPageNumberException, 
+	   FileIOException, 
+	   IOException {
+
+    write_page(pageno, apage, -1);
+  }
+  
+  /** Write a page together with the LSN of the last log record applied to
+   * it.  The LSN is dropped if the database does not keep page LSNs.
+   *
+   * @param pageno pageId will be wrote to disk
+   * @param apage the page object will be wrote to disk
+   * @param lsn the page's LSN, or -1 for none
+   *
+   * @exception InvalidPageNumberException invalid page number
+   * @exception FileIOException file I/O error
+   * @exception IOException I/O errors
+   */
+  public synchronized void write_page(PageId pageno, Page apage, long lsn)
     throws InvalidPageNumberException, 
 	   FileIOException, 
 	   IOException {
@@ -173,17 +467,147 @@ public class DB implements GlobalConst {
     if((pageno.pid < 0)||(pageno.pid >= num_pages))
       throw new InvalidPageNumberException(null, "INVALID_PAGE_NUMBER");
     
+    before_write(pageno.pid);
+    
+    long start = System.nanoTime();
+    if(page_store != null && pageno.pid != 0)
+      {
+	try{
+	  page_store.write(pageno.pid, apage.getpage());
+	}
+	catch (IOException e) {
+	  throw new FileIOException(e, "DB file I/O error");
+	}
+	stats.write(page_class(pageno.pid), page_store.lastLength,
+		    System.nanoTime() - start);
+	return;
+      }
+    
+    if(double_write)
+      {
+	write_pages(new PageId[] { pageno }, new Page[] { apage },
+		    new long[] { lsn });
+	return;
+      }
+    
     // Seek to the correct page
-    fp.seek((long)(pageno.pid *MINIBASE_PAGESIZE));
+    RandomAccessFile fp = seek_page(pageno.pid);
     
     // Write the appropriate number of bytes.
     try{
-      fp.write(apage.getpage());
+      fp.write(slot_image(apage, lsn, slot_buf, 0), 0, page_slot_size);
     }
     catch (IOException e) {
       throw new FileIOException(e, "DB file I/O error");
     }
+    stats.write(page_class(pageno.pid), page_slot_size,
+		System.nanoTime() - start);
+  }
+  
+  /** Write several pages, with their LSNs, in ascending page order.  With
+   * double write on, the pages go in batches first to the double-write
+   * file, which is forced, and then in place, and the data files are
+   * forced; a page torn by a crash during its write in place is put right
+   * from the double-write file when the database is next opened.
+   *
+   * @param pagenos the pages
+   * @param apages their contents
+   * @param lsns their LSNs, or -1 for none
+   *
+   * @exception InvalidPageNumberException invalid page number
+   * @exception FileIOException file I/O error
+   * @exception IOException I/O errors
+   */
+  public synchronized void write_pages(PageId [] pagenos, Page [] apages,
+				       long [] lsns)
+    throws InvalidPageNumberException, 
+	   FileIOException, 
+	   IOException {
+
+    Integer [] order = new Integer[pagenos.length];
+    for(int i = 0; i < order.length; ++i)
+      {
+	if((pagenos[i].pid < 0)||(pagenos[i].pid >= num_pages))
+	  throw new InvalidPageNumberException(null, "INVALID_PAGE_NUMBER");
+	order[i] = i;
+      }
+    for(int i = 0; i < order.length; ++i)
+      before_write(pagenos[i].pid);
+    Arrays.sort(order, (x, y) -> Integer.compare(pagenos[x].pid, pagenos[y].pid));
     
+    try{
+      // Compressed pages always go to new sectors of the page store; the
+      // whole batch is forced once before the pages' locations point at
+      // it, so they need no double write.
+      ArrayList<Integer> in_place = new ArrayList<Integer>();
+      for(int i : order)
+	{
+	  long start = System.nanoTime();
+	  if(page_store != null && pagenos[i].pid != 0)
+	    page_store.stage(pagenos[i].pid, apages[i].getpage());
+	  else if(!double_write)
+	    seek_page(pagenos[i].pid).write(slot_image(apages[i], lsns[i],
+						       slot_buf, 0),
+					    0, page_slot_size);
+	  else
+	    {
+	      in_place.add(i);
+	      continue;
+	    }
+	  stats.write(page_class(pagenos[i].pid),
+		      (page_store != null && pagenos[i].pid != 0)
+		      ? page_store.lastLength : page_slot_size,
+		      System.nanoTime() - start);
+	}
+      if(page_store != null)
+	page_store.commit();
+      
+      int entry_size = 4 + page_slot_size;
+      for(int first = 0; first < in_place.size(); first += double_write_batch)
+	{
+	  long start = System.nanoTime();
+	  int count = Math.min(double_write_batch, in_place.size() - first);
+	  byte [] batch = new byte[double_write_header + count*entry_size];
+	  for(int j = 0; j < count; ++j)
+	    {
+	      int i = in_place.get(first + j);
+	      int off = double_write_header + j*entry_size;
+	      Convert.setIntValue(pagenos[i].pid, off, batch);
+	      slot_image(apages[i], lsns[i], batch, off + 4);
+	    }
+	  Convert.setIntValue(double_write_magic, 0, batch);
+	  Convert.setIntValue(count, 4, batch);
+	  Convert.setIntValue(page_slot_size, 8, batch);
+	  crc.reset();
+	  crc.update(batch, double_write_header, batch.length - double_write_header);
+	  Convert.setIntValue((int) crc.getValue(), 12, batch);
+	  
+	  if(dwb_file == null)
+	    dwb_file = new RandomAccessFile(name + double_write_suffix, "rw");
+	  dwb_file.seek(0);
+	  dwb_file.write(batch);
+	  stats.writeBytes(batch.length);
+	  sync(dwb_file);
+	  
+	  for(int j = 0; j < count; ++j)
+	    {
+	      int off = double_write_header + j*entry_size;
+	      seek_page(Convert.getIntValue(off, batch)).write(batch, off + 4,
+							      page_slot_size);
+	    }
+	  for(int f = 0; f < data_files.length; ++f)
+	    sync(data_files[f]);
+	  
+	  // Each page of the batch is charged an equal share of its time.
+	  long share = (System.nanoTime() - start) / count;
+	  for(int j = 0; j < count; ++j)
+	    stats.write(page_class(pagenos[in_place.get(first + j)].pid),
+			page_slot_size, share);
+	}
+    }
+    catch (IOException e) {
+      throw new FileIOException(e, "DB file I/O error");
+    }
   }
   
   /** Allocate a set of pages where the run size is taken to be 1 by default.
@@ -231,79 +655,21 @@ public class DB implements GlobalConst {
 
     if(runsize < 0) throw new InvalidRunSizeException(null, "Negative run_size");
     
-    int run_size = runsize;
-    int num_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
-    int current_run_start = 0; 
-    int current_run_length = 0;
-    
-    
-    // This loop goes over each page in the space map.
-    PageId pgid = new PageId();
-    byte [] pagebuf;
-    int byteptr;
-    
-    for(int i=0; i< num_map_pages; ++i) {// start forloop01
-	
-      pgid.pid = 1 + i;
-      // Pin the space-map page.
-      
-      Page apage = new Page();
-      pinPage(pgid, apage, false /*read disk*/);
-      
-      pagebuf = apage.getpage();
-      byteptr = 0;
-      
-      // get the num of bits on current page
-      int num_bits_this_page = num_pages - i*bits_per_page;
-      if(num_bits_this_page > bits_per_page)
-	num_bits_this_page = bits_per_page;
-      
-      // Walk the page looking for a sequence of 0 bits of the appropriate
-      // length.  The outer loop steps through the page's bytes, the inner
-      // one steps through each byte's bits.
-      
-      for(; num_bits_this_page>0 
-	    && current_run_length < run_size; ++byteptr) {// start forloop02
-	  
-	
-	Integer intmask = new Integer(1);
-	Byte mask = new Byte(intmask.byteValue());
-	byte tmpmask = mask.byteValue();
-	
-	while (mask.intValue()!=0 && (num_bits_this_page>0)
-	       &&(current_run_length < run_size))
-	  
-	  {	      
-	    if( (pagebuf[byteptr] & tmpmask ) != 0)
-	      {
-		current_run_start += current_run_length + 1;
-		current_run_length = 0;
-	      }
-	    else ++current_run_length;
-	    
-	    
-	    tmpmask <<=1;
-	    mask = new Byte(tmpmask);
-	    --num_bits_this_page;
-	  }
-	
-	
-      }//end of forloop02
-      // Unpin the space-map page.
-      
-      unpinPage(pgid, false /*undirty*/);
-      
-    }// end of forloop01
-    
-    if(current_run_length >= run_size)
+    // Take the run from the in-memory free-extent map; the space map on
+    // disk catches up in flush_space_map().
+    int start = free_extents.allocate(runsize);
+    while(start < 0)
       {
-	start_page_num.pid = current_run_start;
-	set_bits(start_page_num, run_size, 1);
-	
-	return;
+	grow_db(runsize);
+	start = free_extents.allocate(runsize);
       }
     
-    throw new OutOfSpaceException(null, "No space left");
+    start_page_num.pid = start;
+    mark_map_dirty(start, runsize);
+    stats.allocate(runsize);
+    
+    if(SystemDefs.JavabaseLog != null)
+      map_lsn = SystemDefs.JavabaseLog.logAllocate(start_page_num, runsize);
   }
   
   /** Deallocate a set of pages starting at the specified page number and
@@ -327,7 +693,7 @@ public class DB implements GlobalConst {
 
     if(run_size < 0) throw new InvalidRunSizeException(null, "Negative run_size");
     
-    set_bits(start_page_num, run_size, 0);
+    free_run(start_page_num, run_size);
   }
   
   /** Deallocate a set of pages starting at the specified page number
@@ -350,7 +716,7 @@ public class DB implements GlobalConst {
 	   FileIOException,
 	   DiskMgrException {
 
-    set_bits(start_page_num, 1, 0);
+    free_run(start_page_num, 1);
   }
   
   /** Adds a file entry to the header page(s).
@@ -384,94 +750,65 @@ public class DB implements GlobalConst {
     
     // Does the file already exist?  
     
-    if( get_file_entry(fname) != null) 
+    if(file_cache.containsKey(fname)) 
       throw new DuplicateEntryException(null, "DB fileentry already exists");
     
     Page apage = new Page();
-    
-    boolean found = false;
-    int free_slot = 0;
     PageId hpid = new PageId();
-    PageId nexthpid = new PageId(0);
     DBHeaderPage dp;
-    do
-      {// Start DO01
-	//  System.out.println("start do01");
-        hpid.pid = nexthpid.pid;
-	
-	// Pin the header page
+    byte [] before;
+    int free_slot = 0;
+    
+    if(!dir_pages_with_room.isEmpty())
+      {
+	// Pin a header page known to have a free slot, and find the slot.
+	hpid.pid = dir_pages_with_room.first();
 	pinPage(hpid, apage, false /*read disk*/);
-        
-	// This complication is because the first page has a different
-        // structure from that of subsequent pages.
-	if(hpid.pid==0)
-	  {
-	    dp = new DBFirstPage();
-	    ((DBFirstPage) dp).openPage(apage);
-	  }
-	else
-	  {
-	    dp = new DBDirectoryPage();
-	    ((DBDirectoryPage) dp).openPage(apage);
-	  }
-	
-	nexthpid = dp.getNextPage();
-	int entry = 0;
-	
-	PageId tmppid = new PageId();
-	while(entry < dp.getNumOfEntries())
-	  {
-	    dp.getFileEntry(tmppid, entry);
-	    if(tmppid.pid == INVALID_PAGE)  break;
-	    entry ++;
-	  }
-	
-	if(entry < dp.getNumOfEntries())
-	  {
-	    free_slot = entry;
-	    found = true;
-	  }
-	else if (nexthpid.pid != INVALID_PAGE)
-	  {
-	    // We only unpin if we're going to continue looping.
-	    unpinPage(hpid, false /* undirty*/);
-	  }
+	before = before_image(apage);
+	dp = open_header_page(hpid, apage);
 	
-      }while((nexthpid.pid != INVALID_PAGE)&&(!found)); // End of DO01
-    
-    // Have to add a new header page if possible.
-    if(!found)
+	free_slot = next_free_slot(dp, 0);
+      }
+    else
       {
-	try{
-	  allocate_page(nexthpid);
-	}
-	catch(Exception e){         //need rethrow an exception!!!!
-          unpinPage(hpid, false /* undirty*/);
-	  e.printStackTrace();
-	}
+	// Have to add a new header page to the end of the chain.
+	PageId nexthpid = new PageId();
+	allocate_page(nexthpid);
 	
 	// Set the next-page pointer on the previous directory page.
+	hpid.pid = last_dir_page;
+	pinPage(hpid, apage, false /*read disk*/);
+	before = before_image(apage);
+	dp = open_header_page(hpid, apage);
 	dp.setNextPage(nexthpid);
-	unpinPage(hpid, true /* dirty*/);
+	log_and_unpin(hpid, apage, before);
 	
-	// Pin the newly-allocated directory page.
+	// Pin the newly-allocated directory page; all of it is logged.
 	hpid.pid = nexthpid.pid;
 	
 	pinPage(hpid, apage, true/*no diskIO*/);
+	before = null;
 	dp = new DBDirectoryPage(apage);
 	
+	last_dir_page = hpid.pid;
+	dir_pages_with_room.add(hpid.pid);
+	header_pages.set(hpid.pid);
 	free_slot = 0;
       }
     
     // At this point, "hpid" has the page id of the header page with the free
-    // slot; "pg" points to the pinned page; "dp" has the directory_page
-    // pointer; "free_slot" is the entry number in the directory where we're
-    // going to put the new file entry.
+    // slot; "dp" has the directory_page pointer; "free_slot" is the entry
+    // number in the directory where we're going to put the new file entry.
     
     dp.setFileEntry(start_page_num, fname, free_slot);
     
-    unpinPage(hpid, true /* dirty*/);
+    if(next_free_slot(dp, free_slot + 1) >= dp.getNumOfEntries())
+      dir_pages_with_room.remove(hpid.pid);
+    
+    log_and_unpin(hpid, apage, before);
     
+    file_cache.put(fname, new PageId(start_page_num.pid));
+    file_dir_page.put(fname, hpid.pid);
   }
   
   /** Delete the entry corresponding to a file from the header page(s).
@@ -491,68 +828,46 @@ public class DB implements GlobalConst {
 	   InvalidPageNumberException, 
 	   DiskMgrException {
     
+    Integer dir_page = file_dir_page.get(fname);
+    if(dir_page == null)  // Entry not found - nothing deleted
+      throw new FileEntryNotFoundException(null, "DB file not found");
+    
     Page apage = new Page();
-    boolean found = false;
-    int slot = 0;
-    PageId hpid = new PageId();
-    PageId nexthpid = new PageId(0);
+    PageId hpid = new PageId(dir_page);
     PageId tmppid = new PageId();
-    DBHeaderPage dp;
     
-    do
-      { // startDO01
-        hpid.pid = nexthpid.pid;
-	
-	// Pin the header page.
-	pinPage(hpid, apage, false/*read disk*/);
-
-	// This complication is because the first page has a different
-        // structure from that of subsequent pages.
-	if(hpid.pid==0)
-	  {
-	    dp = new DBFirstPage();
-	    ((DBFirstPage)dp).openPage(apage);
-	  }
-	else
-	  {
-	    dp = new DBDirectoryPage();
-	    ((DBDirectoryPage) dp).openPage(apage);
-	  }
-	nexthpid = dp.getNextPage();
-	
-	int entry = 0;
-	
-	String tmpname;
-	while(entry < dp.getNumOfEntries())
-	  {
-	    tmpname = dp.getFileEntry(tmppid, entry);
-	    
-	    if((tmppid.pid != INVALID_PAGE)&&
-	       (tmpname.compareTo(fname) == 0)) break; 
-	    entry ++;
-	  }
-	
-        if(entry < dp.getNumOfEntries())
-	  {
-	    slot = entry;
-	    found = true;
-	  }
-	else
-	  {
-	    unpinPage(hpid, false /*undirty*/);
-	  }
+    // Pin the header page holding the entry.
+    pinPage(hpid, apage, false/*read disk*/);
+    byte [] before = before_image(apage);
+    DBHeaderPage dp = open_header_page(hpid, apage);
+    
+    int entry = 0;
+    
+    String tmpname;
+    while(entry < dp.getNumOfEntries())
+      {
+	tmpname = dp.getFileEntry(tmppid, entry);
 	
-      } while((nexthpid.pid != INVALID_PAGE) && (!found)); // EndDO01
+	if((tmppid.pid != INVALID_PAGE)&&
+	   (tmpname.compareTo(fname) == 0)) break; 
+	entry ++;
+      }
     
-    if(!found)  // Entry not found - nothing deleted
-      throw new FileEntryNotFoundException(null, "DB file not found");
+    if(entry >= dp.getNumOfEntries())
+      {
+	unpinPage(hpid, false /*undirty*/);
+	throw new FileEntryNotFoundException(null, "DB file not found");
+      }
     
     // Have to delete record at hpnum:slot
     tmppid.pid = INVALID_PAGE;
-    dp.setFileEntry(tmppid, "\0", slot);
+    dp.setFileEntry(tmppid, "\0", entry);
     
-    unpinPage(hpid, true /*dirty*/);
+    log_and_unpin(hpid, apage, before);
     
+    file_cache.remove(fname);
+    file_dir_page.remove(fname);
+    dir_pages_with_room.add(hpid.pid);
   }
   
   /** Get the entry corresponding to the given file.
@@ -570,159 +885,1560 @@ public class DB implements GlobalConst {
 	   InvalidPageNumberException, 
 	   DiskMgrException {
 
-    Page apage = new Page();
-    boolean found = false;
-    int slot = 0;
-    PageId hpid = new PageId();
-    PageId nexthpid = new PageId(0);
-    DBHeaderPage dp;
+    PageId startpid = file_cache.get(name);
+    if(startpid == null)  // Entry not found - don't post error, just fail.
+      return null;
     
-    do
-      {// Start DO01
+    return new PageId(startpid.pid);
+  }
+  
+  /** Turn the page checksum trailer on or off for databases created by
+   * this object.  When it is on, write_page stores a CRC32C of each page
+   * after the page and read_page checks it.  An existing database keeps
+   * the setting it was created with.
+   *
+   * @param on true to checksum pages
+   */
+  public synchronized void set_page_checksums(boolean on) {
+    page_checksums = on;
+    page_slot_size = MINIBASE_PAGESIZE + (page_lsns ? lsn_size : 0)
+      + (on ? checksum_size : 0);
+    slot_buf = new byte[page_slot_size];
+  }
+  
+  /** Take a backup of the database while it is in use.  The buffer pool
+   * is flushed and, if there is a log, a checkpoint taken; the backup
+   * then holds every page as it was at that moment, even though writes go
+   * on while it is copied: a page about to be overwritten before it has
+   * been copied is copied first.
+   *
+   * A full backup holds every allocated page.  An incremental backup holds
+   * only the pages written since the last backup, full or incremental,
+   * so its cost follows how much has changed rather than the size of the
+   * database.
+   *
+   * @param backup_fname the file to write the backup to
+   * @param incremental true for an incremental backup
+   *
+   * @exception IOException I/O errors
+   * @exception DiskMgrException error caused by other layers, or a backup
+   *   is already being taken
+   */
+  public void backup(String backup_fname, boolean incremental)
+    throws IOException,
+	   DiskMgrException {
+
+    BitSet pages;
+    synchronized(SystemDefs.JavabaseBM) {
+      long checkpoint_lsn = -1;
+      try {
+	SystemDefs.JavabaseBM.flushAllPages();
+	if(SystemDefs.JavabaseRecovery != null)
+	  checkpoint_lsn = SystemDefs.JavabaseRecovery.checkpoint();
+      }
+      catch (Exception e) {
+	throw new DiskMgrException(e, "DB.java: backup() failed");
+      }
+      
+      synchronized(this) {
+	if(backup_pending != null)
+	  throw new DiskMgrException(null, "DB.java: a backup is running");
 	
-	// System.out.println("get_file_entry do-loop01: "+name);
-        hpid.pid = nexthpid.pid;
+	if(incremental)
+	  pages = (BitSet) changed_pages.clone();
+	else
+	  {
+	    pages = new BitSet();
+	    pages.set(0, num_pages);
+	    for(Map.Entry<Integer, Integer> run
+		  : free_extents.runs(0, num_pages).entrySet())
+	      pages.clear(run.getKey(), run.getKey() + run.getValue());
+	  }
 	
-        // Pin the header page.
-        pinPage(hpid, apage, false /*no diskIO*/);
+	backup_out = BackupFile.create(backup_fname,
+				       incremental ? BackupFile.INCREMENTAL
+				       : BackupFile.FULL,
+				       num_pages, checkpoint_lsn);
+	backup_pending = (BitSet) pages.clone();
+	changed_pages.clear();
+      }
+    }
+    
+    // Copy a chunk at a time so that writers are not held up for long.
+    boolean done = false;
+    try {
+      while(!done)
+	synchronized(this) {
+	  int pid = 0;
+	  for(int n = 0; n < backup_chunk && pid >= 0; ++n)
+	    {
+	      pid = backup_pending.nextSetBit(pid);
+	      if(pid >= 0)
+		copy_to_backup(pid);
+	    }
+	  if(backup_pending.isEmpty())
+	    {
+	      backup_out.finish();
+	      done = true;
+	    }
+	}
+    }
+    finally {
+      synchronized(this) {
+	if(!done)
+	  {
+	    // The pages will have to go in the next backup.
+	    changed_pages.or(pages);
+	    backup_out.close();
+	  }
+	backup_pending = null;
+	backup_out = null;
+      }
+    }
+  }
+  
+  /** Rebuild a database from a full backup and the incremental backups
+   * taken after it, applied in the order given.  The database is written
+   * as a single data file and left closed; open it with openDB.
+   *
+   * To roll the restored database forward to the end of the log, write
+   * the returned checkpoint LSN to the log's master record
+   * (LogMgr.writeMaster) before opening it with restart recovery.
+   *
+   * @param fname the DB file to create
+   * @param backup_fnames the backups, the full backup first
+   * @return the LSN of the checkpoint the last backup was taken at, or -1
+   *
+   * @exception IOException I/O errors, or a backup is unfinished
+   * @exception DiskMgrException the backups do not form a full backup
+   *   followed by incremental ones
+   */
+  public long restore_backup(String fname, String [] backup_fnames)
+    throws IOException,
+	   DiskMgrException {
+
+    name = new String(fname);
+    new File(name).delete();
+    new File(name + compressed_pages_suffix).delete();
+    new File(name + compressed_locations_suffix).delete();
+    new File(name + double_write_suffix).delete();
+    new File(name + changed_pages_suffix).delete();
+    changed_pages = null;
+    double_write = false;
+    
+    long checkpoint_lsn = -1;
+    PageId pageId = new PageId();
+    Page apage = new Page();
+    for(int i = 0; i < backup_fnames.length; ++i)
+      {
+	BackupFile b = BackupFile.open(backup_fnames[i]);
+	try {
+	  if(b.kind != ((i == 0) ? BackupFile.FULL : BackupFile.INCREMENTAL))
+	    throw new DiskMgrException(null, "DB.java: " + backup_fnames[i]
+				       + " is not the right kind of backup");
+	  
+	  long lsn = b.next(pageId, apage);
+	  if(i == 0)
+	    {
+	      // The first page of the full backup gives the page format.
+	      if(pageId.pid != 0)
+		throw new DiskMgrException(null, "DB.java: " + backup_fnames[i]
+					   + " has no first page");
+	      int flags = new DBFirstPage(apage).getFlags();
+	      page_lsns = (flags & flag_page_lsns) != 0;
+	      set_page_checksums((flags & flag_page_checksums) != 0);
+	      page_compression = (flags & flag_page_compression) != 0;
+	      num_pages = b.numPages;
+	      open_data_files(new String[0]);
+	      if(page_compression)
+		open_page_store();
+	      extend_data_files();
+	    }
+	  else if(b.numPages > num_pages)
+	    {
+	      num_pages = b.numPages;
+	      extend_data_files();
+	    }
+	  
+	  for(; pageId.pid >= 0; lsn = b.next(pageId, apage))
+	    {
+	      if(pageId.pid == 0)
+		{
+		  DBFirstPage firstpg = new DBFirstPage();
+		  firstpg.openPage(apage);
+		  firstpg.setNumDataFiles(1);
+		}
+	      write_page(pageId, apage, lsn);
+	    }
+	  checkpoint_lsn = b.checkpointLsn;
+	}
+	catch (InvalidPageNumberException | FileIOException e) {
+	  throw new DiskMgrException(e, "DB.java: " + backup_fnames[i]
+				     + " does not fit the database");
+	}
+	finally {
+	  b.close();
+	}
+      }
+    
+    closeDB();
+    return checkpoint_lsn;
+  }
+  
+  /** Register a listener to be told about the pages compact() moves.
+   *
+   * @param listener the listener
+   */
+  public synchronized void add_page_move_listener(PageMoveListener listener) {
+    move_listeners.add(listener);
+  }
+  
+  /** Stop telling a listener about moved pages.
+   *
+   * @param listener the listener
+   */
+  public synchronized void remove_page_move_listener(PageMoveListener listener) {
+    move_listeners.remove(listener);
+  }
+  
+  /** Move pages in use from the end of the database into the free pages
+   * nearest its start, then truncate the free pages left at the end.  The
+   * database stays open; the buffer manager is only held for a batch of
+   * moves at a time.
+   *
+   * A page is moved only if it is a header page of the file directory, or
+   * a registered PageMoveListener owns it; the first page and the
+   * space-map pages never move.  No listener in this tree follows heap
+   * page chains, so unless one is registered, data pages stay where they
+   * are and the database only shrinks down to its last one.  The references to a moved page are
+   * updated, and on disk, before its old copy is freed, so a crash part
+   * way through leaves every page reachable.  Page moves are not logged,
+   * so this may not run while transactions are in progress; checkpoints
+   * are taken before and after so that restart never replays a record
+   * older than the moves.
+   *
+   * @return the number of pages the database shrank by
+   *
+   * @exception IOException I/O errors
+   * @exception DiskMgrException transactions are in progress, a backup is
+   *   running, or error caused by other layers
+   */
+  public int compact()
+    throws IOException,
+	   DiskMgrException {
+
+    BufMgr bufmgr = SystemDefs.JavabaseBM;
+    LogMgr log = SystemDefs.JavabaseLog;
+    int old_num_pages;
+    
+    synchronized(bufmgr) {
+      if(log != null && !log.getTransactions().isEmpty())
+	throw new DiskMgrException(null, "DB.java: transactions in progress");
+      if(backup_pending != null)
+	throw new DiskMgrException(null, "DB.java: a backup is running");
+      old_num_pages = num_pages;
+      checkpoint();
+    }
+    
+    // Pages above hi have been moved or cannot be.
+    int hi = num_pages;
+    boolean more = true;
+    while(more)
+      synchronized(bufmgr) {
+	List<Integer> chain = dir_chain();
+	List<PageId> moved = new ArrayList<PageId>();
 	
-	// This complication is because the first page has a different
-        // structure from that of subsequent pages.
-	if(hpid.pid==0)
+	while(moved.size() < compact_batch)
 	  {
-	    dp = new DBFirstPage();
-	    ((DBFirstPage) dp).openPage(apage);
+	    Iterator<Integer> free = free_extents.runs(0, num_pages).keySet().iterator();
+	    int lo = free.hasNext() ? free.next() : num_pages;
+	    
+	    int from = last_movable(hi, lo);
+	    if(from <= lo)
+	      {
+		more = false;
+		break;
+	      }
+	    hi = from;
+	    
+	    move_page(from, lo, chain);
+	    moved.add(new PageId(from));
 	  }
-	else
+	
+	// The moved pages are in place and the references to them on disk,
+	// so the old copies can go.
+	try {
+	  bufmgr.flushAllPages();
+	  for(PageId pid : moved)
+	    bufmgr.freePage(pid);
+	}
+	catch (Exception e) {
+	  throw new DiskMgrException(e, "DB.java: compact() failed");
+	}
+      }
+    
+    synchronized(bufmgr) {
+      truncate();
+      checkpoint();
+      return old_num_pages - num_pages;
+    }
+  }
+  
+  /** Turn double write on or off for this database.  When it is on, every
+   * uncompressed page, written alone or through write_pages, is first
+   * written to a double-write file next to the DB file and forced there,
+   * so that a crash in the middle of a write in place cannot leave a torn
+   * page.  This costs two forces per batch of pages.  Pages of a
+   * compressed database are never written in place, so the setting does
+   * not apply to them.
+   *
+   * @param on true to write pages twice
+   * @exception IOException I/O errors
+   */
+  public synchronized void set_double_write(boolean on)
+    throws IOException {
+
+    double_write = on;
+    if(!on && dwb_file != null)
+      {
+	for(int f = 0; f < data_files.length; ++f)
+	  sync(data_files[f]);
+	dwb_file.close();
+	dwb_file = null;
+	new File(name + double_write_suffix).delete();
+      }
+  }
+  
+  /** Turn page LSNs on or off for databases created later through this
+   * object.  When they are on, each page is followed on disk by the LSN of
+   * the last log record applied to it (before the checksum, if any), as
+   * passed to write_page and returned by read_page_lsn.  Compressed pages
+   * do not keep an LSN.
+   *
+   * @param on true to keep page LSNs
+   */
+  public synchronized void set_page_lsns(boolean on) {
+    page_lsns = on;
+    set_page_checksums(page_checksums);
+  }
+  
+  /** Turn page compression on or off for databases created later through
+   * this object.  When it is on, every page but the first is deflated on
+   * write and kept in a run of small sectors in a separate file, found
+   * through a page-id -> location file; the buffer pool still sees whole
+   * pages.  An existing database keeps the setting it was created with.
+   * The stripe files of a compressed database only hold the first page.
+   *
+   * @param on true to compress pages
+   */
+  public void set_page_compression(boolean on) {
+    page_compression = on;
+  }
+  
+  /** Return the number of times a page has failed its checksum, whether
+   * in read_page or in the scrubber.  The scrubber counts a bad page again
+   * on every pass.
+   */
+  public synchronized long get_checksum_failures() {
+    return checksum_failures;
+  }
+  
+  /** Start a background thread that reads every page of the database
+   * straight from disk, round and round, and checks its checksum.  Pages
+   * that fail are added to get_checksum_failures().
+   *
+   * @param pages_per_second the most pages the scrubber reads in a second
+   */
+  public synchronized void start_scrubber(int pages_per_second) {
+    if(scrubber != null || !page_checksums) return;
+    scrubber = new PageScrubber(this, pages_per_second);
+    scrubber.start();
+  }
+  
+  /** Stop the scrubber, if it is running.
+   */
+  public void stop_scrubber() {
+    PageScrubber s;
+    synchronized(this) {
+      s = scrubber;
+      scrubber = null;
+    }
+    if(s != null) s.shutdown();
+  }
+  
+  /** Set how many pages the database grows by when it runs out of space.
+   * The database never grows if this is 0.
+   *
+   * @param num_pgs number of pages to add at a time
+   */
+  public void set_growth_chunk(int num_pgs) {
+    growth_chunk = (num_pgs > 0) ? num_pgs : 0;
+  }
+  
+  /** Return the I/O statistics of the database.  They are also
+   * registered with the platform MBean server while the database is open.
+   */
+  public DBStats get_stats() {
+    return stats;
+  }
+  
+  /** Functions to return some characteristics of the database.
+   */
+  public String db_name(){return name;}
+  public int db_num_pages(){return num_pages;}
+  public int db_page_size(){return MINIBASE_PAGESIZE;}
+  
+  /** Print out the space map of the database.
+   * The space map is a bitmap showing which
+   * pages of the db are currently allocated.
+   *
+   * @exception FileIOException file I/O error
+   * @exception IOException I/O errors
+   * @exception InvalidPageNumberException invalid page number
+   * @exception DiskMgrException error caused by other layers
+   */
+  public void dump_space_map()
+    throws DiskMgrException,
+	   IOException,
+	   FileIOException, 
+	   InvalidPageNumberException 
+	   
+    {
+      
+      flush_space_map();
+      
+      System.out.println ("********  IN DUMP");
+      int num_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
+      int bit_number = 0;
+      
+      // This loop goes over each page in the space map.
+      PageId pgid = new PageId();
+      System.out.println ("num_map_pages = " + num_map_pages);
+      System.out.println ("num_pages = " + num_pages);
+      for(int i=0; i< num_map_pages; i++)
+	{//start forloop01
+	  
+	  pgid.pid = map_page_id(i);
+	  // Pin the space-map page.
+	  Page apage = new Page();
+	  pinPage(pgid, apage, false/*read disk*/);
+	  
+	  // How many bits should we examine on this page?
+	  int num_bits_this_page = num_pages - i*bits_per_page;
+	  System.out.println ("num_bits_this_page = " + num_bits_this_page);
+	  System.out.println ("num_pages = " + num_pages);
+	  if ( num_bits_this_page > bits_per_page )
+	    num_bits_this_page = bits_per_page;
+	  
+	  // Walk the page looking for a sequence of 0 bits of the appropriate
+	  // length.  The outer loop steps through the page's bytes, the inner
+	  // one steps through each byte's bits.
+	  
+	  int pgptr = 0;
+	  byte [] pagebuf = apage.getpage();
+	  int mask;
+	  for ( ; num_bits_this_page > 0; pgptr ++)
+	    {// start forloop02
+	      
+	      for(mask=1;
+		  mask < 256 && num_bits_this_page > 0;
+		  mask=(mask<<1), --num_bits_this_page, ++bit_number )
+		{//start forloop03
+		  
+		  int bit = pagebuf[pgptr] & mask;
+		  if((bit_number%10) == 0)
+		    if((bit_number%50) == 0)
+		      {
+			if(bit_number>0) System.out.println("\n");
+			System.out.print("\t" + bit_number +": ");
+		      }
+		    else System.out.print(' ');
+		  
+		  if(bit != 0) System.out.print("1");
+		  else System.out.print("0");
+		  
+		}//end of forloop03
+	      
+	    }//end of forloop02
+	  
+	  unpinPage(pgid, false /*undirty*/);
+	  
+	}//end of forloop01
+      
+      System.out.println();
+      
+      
+    }
+  
+  /** Bring the space map up to date and write it, and the first page, to
+   * disk.  After this the allocations made so far survive a crash without
+   * help from the log; a checkpoint relies on that.
+   *
+   * @exception DiskMgrException error caused by other layers
+   */
+  public void force_space_map()
+    throws DiskMgrException {
+
+    flush_space_map();
+    
+    int num_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
+    try {
+      SystemDefs.JavabaseBM.flushPage(new PageId(0));
+      for(int i = 0; i < num_map_pages; ++i)
+	SystemDefs.JavabaseBM.flushPage(new PageId(map_page_id(i)));
+    }
+    catch (Exception e) {
+      throw new DiskMgrException(e, "DB.java: force_space_map() failed");
+    }
+  }
+  
+  /** Apply a logged allocation or deallocation again during recovery.
+   * Nothing is logged, and the database grows if the run lies beyond its
+   * end.
+   *
+   * @param start_page_num the first page of the run
+   * @param run_size the number of pages in the run
+   * @param allocated true for an allocation, false for a deallocation
+   *
+   * @exception OutOfSpaceException the database cannot grow that far
+   * @exception IOException I/O errors
+   * @exception DiskMgrException error caused by other layers
+   */
+  public void redo_allocation(PageId start_page_num, int run_size,
+			      boolean allocated)
+    throws OutOfSpaceException,
+	   IOException,
+	   DiskMgrException {
+
+    int end = start_page_num.pid + run_size;
+    while(end > num_pages)
+      grow_db(Math.min(end - num_pages, bits_per_page - 1));
+    
+    if(allocated)
+      free_extents.allocate(start_page_num.pid, run_size);
+    else
+      free_extents.free(start_page_num.pid, run_size);
+    mark_map_dirty(start_page_num.pid, run_size);
+  }
+  
+  /** Write the pages allocated and freed since the last call back to the
+   * space map.  Allocation only updates the in-memory free-extent map, so
+   * this must run before the space-map pages are flushed to disk.
+   *
+   * @exception DiskMgrException error caused by other layers
+   */
+  public void flush_space_map()
+    throws DiskMgrException {
+
+    PageId pgid = new PageId();
+    Page apage = new Page();
+    
+    for(int i = dirty_map_pages.nextSetBit(0); i >= 0;
+	i = dirty_map_pages.nextSetBit(i+1))
+      {
+	pgid.pid = map_page_id(i);
+	
+	// The whole page is rebuilt, so there is no need to read it first.
+	pinPage(pgid, apage, true /*no diskIO*/);
+	build_map_page(i, apage.getpage());
+	
+	// The page may not reach disk before the allocations it records
+	// reach the log.
+	unpinPage(pgid, true /*dirty*/, map_lsn);
+      }
+    
+    dirty_map_pages.clear();
+  }
+  
+  /** Bring a page on its way to disk up to date if it is a space-map page
+   * that allocations have changed since it was last rebuilt.  The buffer
+   * manager calls this before it writes a single page, so that a map page
+   * flushed or evicted on its own never stores out-of-date bits.
+   *
+   * @param pageno the page being written
+   * @param apage its contents, rebuilt in place
+   * @param lsn the page's LSN
+   * @return the LSN the page must be written with, which the log must be
+   * flushed up to first
+   */
+  public long sync_map_page(PageId pageno, Page apage, long lsn)
+    {
+      int i = map_page_index(pageno.pid);
+      if(i < 0 || !dirty_map_pages.get(i))
+	return lsn;
+      
+      build_map_page(i, apage.getpage());
+      dirty_map_pages.clear(i);
+      return Math.max(lsn, map_lsn);
+    }
+  
+  /** Fill in the bits of a space-map page from the free-extent map.
+   */
+  private void build_map_page(int i, byte [] pagebuf)
+    {
+      int first_page = i*bits_per_page;
+      int num_bits_this_page = num_pages - first_page;
+      if(num_bits_this_page > bits_per_page)
+	num_bits_this_page = bits_per_page;
+      
+      Arrays.fill(pagebuf, (byte) 0);
+      fill_bits(pagebuf, 0, num_bits_this_page, 1);
+      
+      int end = first_page + num_bits_this_page;
+      for(Map.Entry<Integer, Integer> run
+	    : free_extents.runs(first_page, end).entrySet())
+	{
+	  int run_start = Math.max(run.getKey(), first_page);
+	  int run_end = Math.min(run.getKey() + run.getValue(), end);
+	  fill_bits(pagebuf, run_start - first_page, run_end - run_start, 0);
+	}
+    }
+  
+  /** the files holding the pages, in stripe order */
+  private RandomAccessFile [] data_files;
+  private String [] data_file_names;
+  private int num_pages = 100;
+  private String name;
+  
+  /** pages written since the last backup, or null before they are known */
+  private BitSet changed_pages;
+  
+  /** pages the running backup has yet to copy, and where they go */
+  private BitSet backup_pending;
+  private BackupFile backup_out;
+  private Page backup_buf = new Page();
+  
+  /** told about the pages compact() moves */
+  private ArrayList<PageMoveListener> move_listeners =
+    new ArrayList<PageMoveListener>();
+  
+  /** true if pages are written to the double-write file first */
+  private boolean double_write = false;
+  private RandomAccessFile dwb_file;
+  
+  /** true if each page is followed on disk by its LSN */
+  private boolean page_lsns = false;
+  
+  /** true if each page is followed on disk by a checksum */
+  private boolean page_checksums = false;
+  
+  /** bytes each page takes in a data file */
+  private int page_slot_size = MINIBASE_PAGESIZE;
+  
+  /** buffer for a page and its checksum trailer */
+  private byte [] slot_buf = new byte[MINIBASE_PAGESIZE];
+  
+  private CRC32C crc = new CRC32C();
+  private long checksum_failures = 0;
+  private PageScrubber scrubber;
+  private byte [] scrub_buf = new byte[MINIBASE_PAGESIZE];
+  
+  /** true if pages other than the first are compressed */
+  private boolean page_compression = false;
+  
+  /** where compressed pages are kept, or null */
+  private CompressedPageStore page_store;
+  
+  /** pages added to the database each time it runs out of space */
+  private int growth_chunk = default_growth_chunk;
+  
+  /** number of space-map pages stored right after the first page */
+  private int base_map_pages;
+  
+  /** free runs of pages, kept in step with every allocation */
+  private FreeExtentMap free_extents = new FreeExtentMap();
+  
+  /** LSN of the last allocation or deallocation logged */
+  private long map_lsn = -1;
+  
+  /** space-map pages that are behind free_extents */
+  private BitSet dirty_map_pages = new BitSet();
+  
+  /** file name -> first page of the file, for every directory entry */
+  private HashMap<String, PageId> file_cache = new HashMap<String, PageId>();
+  
+  /** file name -> header page holding the file's entry */
+  private HashMap<String, Integer> file_dir_page = new HashMap<String, Integer>();
+  
+  /** header pages with at least one free entry */
+  private TreeSet<Integer> dir_pages_with_room = new TreeSet<Integer>();
+  
+  /** every header page of the file directory */
+  private BitSet header_pages = new BitSet();
+  
+  /** counters and latency histograms of the database's I/O */
+  private DBStats stats = new DBStats();
+  
+  /** name the statistics are registered under with JMX, or null */
+  private ObjectName stats_mbean_name;
+  
+  /** last header page in the chain */
+  private int last_dir_page = 0;
+  
+  
+  /** Build the file directory cache by walking the chain of header pages
+   * once.
+   */
+  private void load_file_directory()
+    throws IOException,
+	   DiskMgrException {
+
+    file_cache.clear();
+    file_dir_page.clear();
+    dir_pages_with_room.clear();
+    header_pages.clear();
+    
+    Page apage = new Page();
+    PageId hpid = new PageId();
+    PageId nexthpid = new PageId(0);
+    PageId tmppid = new PageId();
+    
+    do
+      {
+	hpid.pid = nexthpid.pid;
+	header_pages.set(hpid.pid);
+	pinPage(hpid, apage, false /*read disk*/);
+	DBHeaderPage dp = open_header_page(hpid, apage);
+	nexthpid = dp.getNextPage();
+	
+	for(int entry = 0; entry < dp.getNumOfEntries(); ++entry)
+	  {
+	    String tmpname = dp.getFileEntry(tmppid, entry);
+	    if(tmppid.pid == INVALID_PAGE)
+	      {
+		dir_pages_with_room.add(hpid.pid);
+		continue;
+	      }
+	    file_cache.put(tmpname, new PageId(tmppid.pid));
+	    file_dir_page.put(tmpname, hpid.pid);
+	  }
+	
+	unpinPage(hpid, false /*undirty*/);
+	
+      }while(nexthpid.pid != INVALID_PAGE);
+    
+    last_dir_page = hpid.pid;
+  }
+  
+  /** Rebuild the file directory cache from the header pages, after
+   * recovery has redone changes to them.
+   *
+   * @exception IOException I/O errors
+   * @exception DiskMgrException error caused by other layers
+   */
+  public void reload_file_directory()
+    throws IOException,
+	   DiskMgrException {
+
+    load_file_directory();
+  }
+  
+  /** Copy a pinned header page before changing it, so that log_and_unpin
+   * can log the change.  Without a log there is nothing to copy.
+   */
+  private static byte [] before_image(Page apage)
+    {
+      if(SystemDefs.JavabaseLog == null)
+	return null;
+      return apage.getpage().clone();
+    }
+  
+  /** Log the bytes of a header page that differ from its before image,
+   * and unpin it dirty with the record's LSN, so that the page cannot
+   * reach disk ahead of the record.  With no before image the whole page
+   * is logged, as for a page just allocated.
+   */
+  private void log_and_unpin(PageId hpid, Page apage, byte [] before)
+    throws IOException,
+	   DiskMgrException {
+
+    if(SystemDefs.JavabaseLog == null)
+      {
+	unpinPage(hpid, true /*dirty*/);
+	return;
+      }
+    
+    byte [] after = apage.getpage();
+    int first = 0;
+    int end = MINIBASE_PAGESIZE;
+    if(before == null)
+      before = new byte[MINIBASE_PAGESIZE];
+    else
+      {
+	while(first < end && before[first] == after[first])
+	  ++first;
+	while(end > first && before[end - 1] == after[end - 1])
+	  --end;
+      }
+    if(first == end)
+      {
+	unpinPage(hpid, false /*undirty*/);
+	return;
+      }
+    
+    long lsn = SystemDefs.JavabaseLog.logUpdate(hpid, first,
+						Arrays.copyOfRange(before, first, end),
+						Arrays.copyOfRange(after, first, end));
+    unpinPage(hpid, true /*dirty*/, lsn);
+  }
+  
+  /** Wrap a pinned header page.  This complication is because the first
+   * page has a different structure from that of subsequent pages.
+   */
+  private static DBHeaderPage open_header_page(PageId hpid, Page apage)
+    {
+      if(hpid.pid==0)
+	{
+	  DBFirstPage dp = new DBFirstPage();
+	  dp.openPage(apage);
+	  return dp;
+	}
+      DBDirectoryPage dp = new DBDirectoryPage();
+      dp.openPage(apage);
+      return dp;
+    }
+  
+  /** Return the first free entry on a header page at or after the given
+   * entry, or the number of entries if there is none.
+   */
+  private static int next_free_slot(DBHeaderPage dp, int entry)
+    throws IOException {
+
+    PageId tmppid = new PageId();
+    while(entry < dp.getNumOfEntries())
+      {
+	dp.getFileEntry(tmppid, entry);
+	if(tmppid.pid == INVALID_PAGE)  break;
+	entry ++;
+      }
+    return entry;
+  }
+  
+  
+  /** Return the page id of the i-th space-map page.  The map pages the
+   * database was created with follow the first page; each map page added
+   * by grow_db() is the first of the pages it describes.
+   */
+  private int map_page_id(int i)
+    {
+      return (i < base_map_pages) ? 1 + i : i*bits_per_page;
+    }
+  
+  /** Return the number of the space-map page with the given page id, or
+   * -1 if it is not one.
+   */
+  private int map_page_index(int pid)
+    {
+      if(pid >= 1 && pid <= base_map_pages)
+	return pid - 1;
+      int num_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
+      int i = pid/bits_per_page;
+      if(pid % bits_per_page == 0 && i >= base_map_pages && i < num_map_pages)
+	return i;
+      return -1;
+    }
+  
+  /** Open the data files: the DB file itself first, then the stripe files.
+   */
+  private void open_data_files(String [] stripe_fnames)
+    throws IOException {
+
+    data_file_names = new String[1 + stripe_fnames.length];
+    data_file_names[0] = name;
+    System.arraycopy(stripe_fnames, 0, data_file_names, 1, stripe_fnames.length);
+    
+    data_files = new RandomAccessFile[data_file_names.length];
+    for(int i = 0; i < data_files.length; ++i)
+      data_files[i] = new RandomAccessFile(data_file_names[i], "rw");
+  }
+  
+  /** Open the store of compressed pages next to the DB file.
+   */
+  private void open_page_store()
+    throws IOException {
+
+    page_store = new CompressedPageStore(name + compressed_pages_suffix,
+					 name + compressed_locations_suffix,
+					 page_checksums, stats);
+  }
+  
+  /** Size every data file to hold its share of num_pages pages.  With
+   * compression on only the first page is kept in the data files.
+   */
+  private void extend_data_files()
+    throws IOException {
+
+    int file_pages = (page_store != null) ? 1 : num_pages;
+    int pages_per_row = stripe_pages * data_files.length;
+    for(int i = 0; i < data_files.length; ++i)
+      {
+	int rest = file_pages % pages_per_row - i*stripe_pages;
+	long pages = (long)(file_pages / pages_per_row) * stripe_pages
+	  + Math.max(0, Math.min(rest, stripe_pages));
+	data_files[i].setLength(pages*page_slot_size);
+      }
+  }
+  
+  /** Seek to a page in the data file that holds it.  Runs of stripe_pages
+   * pages are dealt to the data files in turn.
+   * @return the data file holding the page
+   */
+  private RandomAccessFile seek_page(int pid)
+    throws IOException {
+
+    int unit = pid / stripe_pages;
+    RandomAccessFile file = data_files[unit % data_files.length];
+    long offset = (long)(unit / data_files.length) * stripe_pages
+      + pid % stripe_pages;
+    file.seek(offset*page_slot_size);
+    return file;
+  }
+  
+  /** Read a page straight from disk and check its checksum, counting it
+   * if it fails.  Used by the scrubber; the buffer pool is not involved.
+   */
+  synchronized void verify_page(int pid)
+    throws IOException {
+
+    if(!page_checksums || pid >= num_pages) return;
+    
+    if(page_store != null && pid != 0)
+      {
+	if(!page_store.read(pid, scrub_buf))
+	  ++checksum_failures;
+	return;
+      }
+    
+    seek_page(pid).read(slot_buf);
+    if(!checksum_ok(slot_buf))
+      ++checksum_failures;
+  }
+  
+  /** Force a file to disk, counting the force.
+   */
+  private void sync(RandomAccessFile f)
+    throws IOException {
+
+    long start = System.nanoTime();
+    f.getFD().sync();
+    stats.sync(System.nanoTime() - start);
+  }
+  
+  /** Return the class of a page for the statistics.
+   */
+  private int page_class(int pid)
+    {
+      if(pid == 0 || header_pages.get(pid))
+	return DBStats.DIRECTORY;
+      if((pid >= 1 && pid <= base_map_pages)
+	 || (pid % bits_per_page == 0 && pid / bits_per_page >= base_map_pages))
+	return DBStats.MAP;
+      return DBStats.DATA;
+    }
+  
+  /** Register the statistics with the platform MBean server, as
+   * diskmgr:type=DB,name=<DB file name>.  Statistics are still available
+   * from get_stats() if that fails.
+   */
+  private void register_stats()
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+	ObjectName mbean_name = new ObjectName("diskmgr:type=DB,name="
+					       + ObjectName.quote(name));
+	if(server.isRegistered(mbean_name))
+	  server.unregisterMBean(mbean_name);
+	server.registerMBean(stats, mbean_name);
+	stats_mbean_name = mbean_name;
+      }
+      catch (JMException e) {
+	stats_mbean_name = null;
+      }
+    }
+  
+  /** Take the statistics off the MBean server.
+   */
+  private void unregister_stats()
+    {
+      if(stats_mbean_name == null)
+	return;
+      try {
+	ManagementFactory.getPlatformMBeanServer().unregisterMBean(stats_mbean_name);
+      }
+      catch (JMException e) {
+	// someone else's by now
+      }
+      stats_mbean_name = null;
+    }
+  
+  /** Flush the buffer pool and, if there is a log, take a checkpoint, so
+   * that restart starts no earlier than now.
+   */
+  private void checkpoint()
+    throws DiskMgrException {
+
+    try {
+      SystemDefs.JavabaseBM.flushAllPages();
+      if(SystemDefs.JavabaseRecovery != null)
+	SystemDefs.JavabaseRecovery.checkpoint();
+    }
+    catch (Exception e) {
+      throw new DiskMgrException(e, "DB.java: checkpoint failed");
+    }
+  }
+  
+  /** Return the header pages of the file directory, in chain order.
+   */
+  private List<Integer> dir_chain()
+    throws IOException,
+	   DiskMgrException {
+
+    List<Integer> chain = new ArrayList<Integer>();
+    Page apage = new Page();
+    PageId hpid = new PageId(0);
+    while(hpid.pid != INVALID_PAGE)
+      {
+	chain.add(hpid.pid);
+	PageId pinned = new PageId(hpid.pid);
+	pinPage(pinned, apage, false /*read disk*/);
+	hpid = open_header_page(pinned, apage).getNextPage();
+	unpinPage(pinned, false /*undirty*/);
+      }
+    return chain;
+  }
+  
+  /** Find the last page below a given one that compact() may move.  With
+   * no move listener only the directory header pages can move, so only
+   * they are looked at; otherwise pages are tried one by one, stepping
+   * over each free run whole.
+   *
+   * @param below the page to look below
+   * @param lo the page to look above
+   * @return the page, or -1 if there is none
+   */
+  private int last_movable(int below, int lo)
+    {
+      if(move_listeners.isEmpty())
+	{
+	  for(int pid = header_pages.previousSetBit(below - 1); pid > lo;
+	      pid = header_pages.previousSetBit(pid - 1))
+	    if(movable(pid))
+	      return pid;
+	  return -1;
+	}
+      
+      for(int pid = below - 1; pid > lo; --pid)
+	{
+	  SortedMap<Integer, Integer> free = free_extents.runs(pid, pid + 1);
+	  if(!free.isEmpty())
+	    pid = free.firstKey();
+	  else if(movable(pid))
+	    return pid;
+	}
+      return -1;
+    }
+  
+  /** Tell whether compact() may move a page: one in use, not pinned, not
+   * the first page or a space-map page, and either a directory header
+   * page or owned by a move listener.
+   */
+  private boolean movable(int pid)
+    {
+      if(pid == 0 || free_extents.isFree(pid))
+	return false;
+      if(pid <= base_map_pages
+	 || (pid % bits_per_page == 0 && pid / bits_per_page >= base_map_pages))
+	return false;
+      
+      PageId pageId = new PageId(pid);
+      if(SystemDefs.JavabaseBM.isPinned(pageId))
+	return false;
+      if(header_pages.get(pid))
+	return true;
+      for(PageMoveListener l : move_listeners)
+	if(l.ownsPage(pageId))
+	  return true;
+      return false;
+    }
+  
+  /** Copy a page to a free page and point everything that referred to it
+   * there instead.  The old page stays allocated.
+   */
+  private void move_page(int from, int to, List<Integer> chain)
+    throws IOException,
+	   DiskMgrException {
+
+    PageId from_pid = new PageId(from);
+    PageId to_pid = new PageId(to);
+    
+    List<PageMoveListener> owners = new ArrayList<PageMoveListener>();
+    for(PageMoveListener l : move_listeners)
+      if(l.ownsPage(from_pid))
+	owners.add(l);
+    
+    free_extents.allocate(to, 1);
+    mark_map_dirty(to, 1);
+    if(SystemDefs.JavabaseLog != null)
+      map_lsn = SystemDefs.JavabaseLog.logAllocate(to_pid, 1);
+    
+    Page src = new Page();
+    Page dst = new Page();
+    pinPage(from_pid, src, false /*read disk*/);
+    pinPage(to_pid, dst, true /*no diskIO*/);
+    System.arraycopy(src.getpage(), 0, dst.getpage(), 0, MINIBASE_PAGESIZE);
+    unpinPage(to_pid, true /*dirty*/,
+	      SystemDefs.JavabaseBM.getPageLsn(from_pid));
+    unpinPage(from_pid, false /*undirty*/);
+    try {
+      SystemDefs.JavabaseBM.flushPage(to_pid);
+    }
+    catch (Exception e) {
+      throw new DiskMgrException(e, "DB.java: move_page() failed");
+    }
+    
+    // A header page is pointed to by the one before it in the chain.
+    int at = chain.indexOf(from);
+    if(at > 0)
+      {
+	PageId prev = new PageId(chain.get(at - 1));
+	Page apage = new Page();
+	pinPage(prev, apage, false /*read disk*/);
+	open_header_page(prev, apage).setNextPage(to_pid);
+	unpinPage(prev, true /*dirty*/);
+	chain.set(at, to);
+	header_pages.clear(from);
+	header_pages.set(to);
+	
+	if(last_dir_page == from)
+	  last_dir_page = to;
+	if(dir_pages_with_room.remove(from))
+	  dir_pages_with_room.add(to);
+	for(Map.Entry<String, Integer> e : file_dir_page.entrySet())
+	  if(e.getValue() == from)
+	    e.setValue(to);
+      }
+    
+    // Directory entries for files starting at the page.
+    for(Map.Entry<String, PageId> e : file_cache.entrySet())
+      if(e.getValue().pid == from)
+	{
+	  PageId hpid = new PageId(file_dir_page.get(e.getKey()));
+	  PageId tmppid = new PageId();
+	  Page apage = new Page();
+	  pinPage(hpid, apage, false /*read disk*/);
+	  DBHeaderPage dp = open_header_page(hpid, apage);
+	  for(int entry = 0; entry < dp.getNumOfEntries(); ++entry)
+	    if(dp.getFileEntry(tmppid, entry).equals(e.getKey())
+	       && tmppid.pid == from)
+	      dp.setFileEntry(to_pid, e.getKey(), entry);
+	  unpinPage(hpid, true /*dirty*/);
+	  e.getValue().pid = to;
+	}
+    
+    for(PageMoveListener l : owners)
+      try {
+	l.pageMoved(from_pid, to_pid);
+      }
+      catch (Exception e) {
+	throw new DiskMgrException(e, "DB.java: page move listener failed");
+      }
+  }
+  
+  /** Cut off the free pages at the end of the database, along with the
+   * space-map pages that only described them.
+   */
+  private void truncate()
+    throws IOException,
+	   DiskMgrException {
+
+    // One past the last page in use, not counting map pages added by
+    // grow_db(), which are the first of the pages they describe.
+    int end = num_pages;
+    while(end > 1 + base_map_pages
+	  && (free_extents.isFree(end - 1)
+	      || ((end - 1) % bits_per_page == 0
+		  && (end - 1) / bits_per_page >= base_map_pages)))
+      --end;
+    if(end == num_pages)
+      return;
+    
+    int old_num_pages = num_pages;
+    int new_map_pages = (end + bits_per_page -1)/bits_per_page;
+    List<Map.Entry<Integer, Integer>> tail = new ArrayList<Map.Entry<Integer, Integer>>(
+      free_extents.runs(end, old_num_pages).entrySet());
+    for(Map.Entry<Integer, Integer> run : tail)
+      free_extents.allocate(Math.max(run.getKey(), end),
+			    run.getKey() + run.getValue() - Math.max(run.getKey(), end));
+    
+    num_pages = end;
+    dirty_map_pages.clear(new_map_pages, Integer.MAX_VALUE);
+    mark_map_dirty(end - 1, 1);
+    
+    PageId pageId = new PageId(0);
+    Page apage = new Page();
+    pinPage(pageId, apage, false /*read disk*/);
+    DBFirstPage firstpg = new DBFirstPage();
+    firstpg.openPage(apage);
+    firstpg.setNumDBPages(num_pages);
+    unpinPage(pageId, true /*dirty*/);
+    force_space_map();
+    
+    SystemDefs.JavabaseBM.discardPages(num_pages);
+    if(changed_pages != null)
+      changed_pages.clear(num_pages, old_num_pages);
+    synchronized(this) {
+      extend_data_files();
+    }
+  }
+  
+  /** Note that a page is about to be written.  If a backup still has to
+   * copy the page, it is copied now, as it is before the write.
+   */
+  private void before_write(int pid)
+    throws IOException {
+
+    if(changed_pages != null)
+      changed_pages.set(pid);
+    if(backup_pending != null && backup_pending.get(pid))
+      copy_to_backup(pid);
+  }
+  
+  /** Copy a page, as it is on disk, to the running backup.
+   */
+  private void copy_to_backup(int pid)
+    throws IOException {
+
+    long lsn;
+    try {
+      lsn = read_page_lsn(new PageId(pid), backup_buf);
+    }
+    catch (InvalidPageNumberException | FileIOException
+	   | InvalidChecksumException e) {
+      throw new IOException("DB page " + pid + " cannot be backed up", e);
+    }
+    backup_out.put(pid, lsn, backup_buf.getpage());
+    backup_pending.clear(pid);
+  }
+  
+  /** Read the changed-page bitmap saved when the database was last closed.
+   * If it was not closed cleanly, every page counts as changed.  The
+   * saved bitmap is then marked stale until the database is closed again.
+   */
+  private void load_changed_pages()
+    throws IOException {
+
+    changed_pages = new BitSet();
+    File f = new File(name + changed_pages_suffix);
+    boolean loaded = false;
+    if(f.length() >= 4)
+      {
+	DataInputStream in = new DataInputStream(new BufferedInputStream(
+	  new FileInputStream(f)));
+	try {
+	  if(in.readInt() == 1)
+	    {
+	      byte [] bits = new byte[in.readInt()];
+	      in.readFully(bits);
+	      changed_pages = BitSet.valueOf(bits);
+	      loaded = true;
+	    }
+	}
+	catch (EOFException e) {
+	  // cut short: treat as stale
+	}
+	finally {
+	  in.close();
+	}
+      }
+    if(!loaded)
+      changed_pages.set(0, num_pages);
+    mark_changed_pages_unsaved();
+  }
+  
+  /** Mark the saved changed-page bitmap stale.
+   */
+  private void mark_changed_pages_unsaved()
+    throws IOException {
+
+    RandomAccessFile f = new RandomAccessFile(name + changed_pages_suffix, "rw");
+    try {
+      f.setLength(0);
+      f.writeInt(0);
+      sync(f);
+    }
+    finally {
+      f.close();
+    }
+  }
+  
+  /** Save the changed-page bitmap, so that the next incremental backup
+   * after the database is opened again knows what to copy.
+   */
+  private void save_changed_pages()
+    throws IOException {
+
+    if(changed_pages == null)
+      return;
+    byte [] bits = changed_pages.toByteArray();
+    RandomAccessFile f = new RandomAccessFile(name + changed_pages_suffix, "rw");
+    try {
+      f.setLength(0);
+      f.writeInt(1);
+      f.writeInt(bits.length);
+      f.write(bits);
+      sync(f);
+    }
+    finally {
+      f.close();
+    }
+    changed_pages = null;
+  }
+  
+  /** Return the bytes a page takes in its data file: the page itself, or
+   * the page followed by its trailer built at off in slot.
+   */
+  private byte [] slot_image(Page apage, long lsn, byte [] slot, int off)
+    {
+      if(page_slot_size == MINIBASE_PAGESIZE && off == 0)
+	return apage.getpage();
+      
+      System.arraycopy(apage.getpage(), 0, slot, off, MINIBASE_PAGESIZE);
+      if(page_lsns)
+	for(int i = 0; i < lsn_size; ++i)
+	  slot[off + MINIBASE_PAGESIZE + i] = (byte) ((lsn + 1) >>> (56 - 8*i));
+      if(page_checksums)
+	put_checksum(slot, off);
+      return slot;
+    }
+  
+  /** Write the pages of the last batch in the double-write file in place,
+   * if the batch is whole, and empty the file.  Pages whose write in place
+   * was cut short by a crash are whole again after this.
+   */
+  private void replay_double_write()
+    throws IOException {
+
+    File f = new File(name + double_write_suffix);
+    if(!f.exists()) return;
+    
+    RandomAccessFile dwb = new RandomAccessFile(f, "rw");
+    try {
+      byte [] header = new byte[double_write_header];
+      if(dwb.length() < double_write_header) return;
+      dwb.readFully(header);
+      int count = Convert.getIntValue(4, header);
+      int slot_size = Convert.getIntValue(8, header);
+      long length = (long)count * (4 + slot_size);
+      if(Convert.getIntValue(0, header) != double_write_magic
+	 || count <= 0 || slot_size < MINIBASE_PAGESIZE
+	 || double_write_header + length > dwb.length())
+	return;
+      
+      byte [] entries = new byte[(int) length];
+      dwb.readFully(entries);
+      crc.reset();
+      crc.update(entries, 0, entries.length);
+      if((int) crc.getValue() != Convert.getIntValue(12, header))
+	return;
+      
+      int saved_slot_size = page_slot_size;
+      page_slot_size = slot_size;
+      try {
+	for(int j = 0; j < count; ++j)
 	  {
-	    dp = new DBDirectoryPage();
-	    ((DBDirectoryPage) dp).openPage(apage);
+	    int off = j*(4 + slot_size);
+	    int pid = Convert.getIntValue(off, entries);
+	    if(pid >= 0)
+	      seek_page(pid).write(entries, off + 4, slot_size);
 	  }
-	nexthpid = dp.getNextPage();
+      }
+      finally {
+	page_slot_size = saved_slot_size;
+      }
+      for(int i = 0; i < data_files.length; ++i)
+	sync(data_files[i]);
+    }
+    finally {
+      dwb.setLength(0);
+      sync(dwb);
+      dwb.close();
+    }
+  }
+  
+  /** Store the CRC32C of the page and its LSN, if any, in the last bytes
+   * of the slot at off in buf.
+   */
+  private void put_checksum(byte [] buf, int off)
+    {
+      int covered = page_slot_size - checksum_size;
+      crc.reset();
+      crc.update(buf, off, covered);
+      int sum = (int) crc.getValue();
+      for(int i = 0; i < checksum_size; ++i)
+	buf[off + covered + i] = (byte) (sum >>> (24 - 8*i));
+    }
+  
+  /** Check the checksum trailer of a page read from disk.  A page that has
+   * never been written is all zeroes, trailer included, and is accepted.
+   */
+  private boolean checksum_ok(byte [] slot)
+    {
+      int covered = page_slot_size - checksum_size;
+      int stored = 0;
+      for(int i = 0; i < checksum_size; ++i)
+	stored = (stored << 8) | (slot[covered + i] & 0xff);
+      
+      crc.reset();
+      crc.update(slot, 0, covered);
+      if((int) crc.getValue() == stored)
+	return true;
+      
+      if(stored != 0)
+	return false;
+      for(int i = 0; i < covered; ++i)
+	if(slot[i] != 0) return false;
+      return true;
+    }
+  
+  /** Extend the database by growth_chunk pages, or by enough pages for a
+   * run of the given size if that is more.  The new pages are free, except
+   * for the space-map pages needed to describe them.
+   */
+  private void grow_db(int run_size)
+    throws OutOfSpaceException,
+	   IOException,
+	   DiskMgrException {
+
+    // A run this long could never avoid the map pages of the new space.
+    if(growth_chunk == 0 || run_size >= bits_per_page)
+      throw new OutOfSpaceException(null, "No space left");
+    
+    long new_num_pages = (long)num_pages + Math.max(growth_chunk, run_size);
+    if(new_num_pages > Integer.MAX_VALUE)
+      throw new OutOfSpaceException(null, "No space left");
+    
+    int old_num_pages = num_pages;
+    int old_map_pages = (old_num_pages + bits_per_page -1)/bits_per_page;
+    num_pages = (int) new_num_pages;
+    int new_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
+    
+    // Extend the files in one step rather than page by page as pages are
+    // written.
+    extend_data_files();
+    
+    free_extents.free(old_num_pages, num_pages - old_num_pages);
+    for(int i = old_map_pages; i < new_map_pages; ++i)
+      free_extents.allocate(map_page_id(i), 1);
+    mark_map_dirty(old_num_pages, num_pages - old_num_pages);
+    
+    // Record the new size on the first page.
+    PageId pageId = new PageId(0);
+    Page apage = new Page();
+    pinPage(pageId, apage, false /*read disk*/);
+    DBFirstPage firstpg = new DBFirstPage();
+    firstpg.openPage(apage);
+    firstpg.setNumDBPages(num_pages);
+    unpinPage(pageId, true /*dirty*/);
+  }
+  
+  /** Build the free-extent map from the space map on disk.
+   */
+  private void load_free_extents()
+    throws DiskMgrException {
+
+    free_extents.clear();
+    dirty_map_pages.clear();
+    
+    int num_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
+    int run_start = -1;
+    PageId pgid = new PageId();
+    Page apage = new Page();
+    
+    for(int i=0; i< num_map_pages; ++i)
+      {
+	pgid.pid = map_page_id(i);
+	pinPage(pgid, apage, false /*read disk*/);
 	
-	int entry = 0;
-	PageId tmppid = new PageId();
-	String tmpname;
+	byte [] pagebuf = apage.getpage();
+	int num_bits_this_page = num_pages - i*bits_per_page;
+	if(num_bits_this_page > bits_per_page)
+	  num_bits_this_page = bits_per_page;
 	
-	while(entry < dp.getNumOfEntries())
+	// Walk the page 64 bits at a time, recording every run of 0 bits.
+	// Bits past the end of the database count as allocated.
+	for(int bitptr = 0; bitptr < num_bits_this_page; bitptr += 64)
 	  {
-	    tmpname = dp.getFileEntry(tmppid, entry);
+	    long word = get_map_word(pagebuf, bitptr >> 3);
+	    int valid_bits = num_bits_this_page - bitptr;
+	    if(valid_bits < 64)
+	      word |= -1L << valid_bits;
 	    
-	    if((tmppid.pid != INVALID_PAGE)&&
-	       (tmpname.compareTo(name) == 0)) break; 
-	    entry ++;
-	  }
-	if(entry < dp.getNumOfEntries())
-	  {
-	    slot =  entry;
-	    found = true;
+	    int bit = 0;
+	    while(bit < 64)
+	      {
+		long rest = word >>> bit;
+		
+		if(run_start < 0)
+		  {
+		    int used = Long.numberOfTrailingZeros(~rest);
+		    if(used >= 64 - bit) break;
+		    bit += used;
+		    rest >>>= used;
+		    run_start = i*bits_per_page + bitptr + bit;
+		  }
+		
+		int free = Long.numberOfTrailingZeros(rest);
+		if(free > 64 - bit) free = 64 - bit;
+		bit += free;
+		
+		if(bit < 64)
+		  {
+		    free_extents.free(run_start,
+				      i*bits_per_page + bitptr + bit - run_start);
+		    run_start = -1;
+		  }
+	      }
 	  }
 	
-	unpinPage(hpid, false /*undirty*/);
-	
-      }while((nexthpid.pid!=INVALID_PAGE)&&(!found));// End of DO01
-    
-    if(!found)  // Entry not found - don't post error, just fail.
-      {    
-	//  System.out.println("entry NOT found");
-	return null;
+	unpinPage(pgid, false /*undirty*/);
       }
     
-    PageId startpid = new PageId();
-    dp.getFileEntry(startpid, slot);
-    return startpid;
+    if(run_start >= 0)
+      free_extents.free(run_start, num_pages - run_start);
   }
   
-  /** Functions to return some characteristics of the database.
+  /** Give a run of pages back to the free-extent map.
    */
-  public String db_name(){return name;}
-  public int db_num_pages(){return num_pages;}
-  public int db_page_size(){return MINIBASE_PAGESIZE;}
+  private void free_run(PageId start_page, int run_size)
+    throws InvalidPageNumberException,
+	   IOException {
+
+    if((start_page.pid<0) || (start_page.pid+run_size > num_pages))
+      throw new InvalidPageNumberException(null, "Bad page number");
+    
+    free_extents.free(start_page.pid, run_size);
+    mark_map_dirty(start_page.pid, run_size);
+    stats.deallocate(run_size);
+    
+    if(SystemDefs.JavabaseLog != null)
+      map_lsn = SystemDefs.JavabaseLog.logDeallocate(start_page, run_size);
+    
+    // Freed pages need not keep their space in the compressed store.
+    if(page_store != null)
+      synchronized(this) {
+	for(int i = 0; i < run_size; ++i)
+	  page_store.release(start_page.pid + i);
+      }
+  }
   
-  /** Print out the space map of the database.
-   * The space map is a bitmap showing which
-   * pages of the db are currently allocated.
-   *
-   * @exception FileIOException file I/O error
-   * @exception IOException I/O errors
-   * @exception InvalidPageNumberException invalid page number
-   * @exception DiskMgrException error caused by other layers
+  /** Note the space-map pages covering a run of pages as out of date.
    */
-  public void dump_space_map()
-    throws DiskMgrException,
-	   IOException,
-	   FileIOException, 
-	   InvalidPageNumberException 
-	   
+  private void mark_map_dirty(int start, int run_size)
     {
-      
-      System.out.println ("********  IN DUMP");
-      int num_map_pages = (num_pages + bits_per_page -1)/bits_per_page;
-      int bit_number = 0;
-      
-      // This loop goes over each page in the space map.
-      PageId pgid = new PageId();
-      System.out.println ("num_map_pages = " + num_map_pages);
-      System.out.println ("num_pages = " + num_pages);
-      for(int i=0; i< num_map_pages; i++)
-	{//start forloop01
-	  
-	  pgid.pid = 1 + i;   //space map starts at page1
-	  // Pin the space-map page.
-	  Page apage = new Page();
-	  pinPage(pgid, apage, false/*read disk*/);
-	  
-	  // How many bits should we examine on this page?
-	  int num_bits_this_page = num_pages - i*bits_per_page;
-	  System.out.println ("num_bits_this_page = " + num_bits_this_page);
-	  System.out.println ("num_pages = " + num_pages);
-	  if ( num_bits_this_page > bits_per_page )
-	    num_bits_this_page = bits_per_page;
-	  
-	  // Walk the page looking for a sequence of 0 bits of the appropriate
-	  // length.  The outer loop steps through the page's bytes, the inner
-	  // one steps through each byte's bits.
-	  
-	  int pgptr = 0;
-	  byte [] pagebuf = apage.getpage();
-	  int mask;
-	  for ( ; num_bits_this_page > 0; pgptr ++)
-	    {// start forloop02
-	      
-	      for(mask=1;
-		  mask < 256 && num_bits_this_page > 0;
-		  mask=(mask<<1), --num_bits_this_page, ++bit_number )
-		{//start forloop03
-		  
-		  int bit = pagebuf[pgptr] & mask;
-		  if((bit_number%10) == 0)
-		    if((bit_number%50) == 0)
-		      {
-			if(bit_number>0) System.out.println("\n");
-			System.out.print("\t" + bit_number +": ");
-		      }
-		    else System.out.print(' ');
-		  
-		  if(bit != 0) System.out.print("1");
-		  else System.out.print("0");
-		  
-		}//end of forloop03
-	      
-	    }//end of forloop02
-	  
-	  unpinPage(pgid, false /*undirty*/);
-	  
-	}//end of forloop01
-      
-      System.out.println();
-      
-      
+      if(run_size <= 0) return;
+      dirty_map_pages.set(start/bits_per_page, (start+run_size-1)/bits_per_page + 1);
     }
   
-  private RandomAccessFile fp;
-  private int num_pages = 100;
-  private String name;
-  
   
   /** Set runsize bits starting from start to value specified
    */
@@ -735,69 +2451,31 @@ public class DB implements GlobalConst {
     if((start_page.pid<0) || (start_page.pid+run_size > num_pages))
       throw new InvalidPageNumberException(null, "Bad page number");
     
+    if(run_size == 0) return;
+    
     // Locate the run within the space map.
-    int first_map_page = start_page.pid/bits_per_page + 1;
-    int last_map_page = (start_page.pid+run_size-1)/bits_per_page +1;
+    int first_map_page = start_page.pid/bits_per_page;
+    int last_map_page = (start_page.pid+run_size-1)/bits_per_page;
     int first_bit_no = start_page.pid % bits_per_page;
     
     // The outer loop goes over all space-map pages we need to touch.
+    Page pg = new Page();
+    PageId pgid = new PageId();
     
-    for(PageId pgid = new PageId(first_map_page);
-	pgid.pid <= last_map_page;
-	pgid.pid = pgid.pid+1, first_bit_no = 0)
+    for(int i = first_map_page; i <= last_map_page; ++i, first_bit_no = 0)
       {//Start forloop01
 	
         // Pin the space-map page.
-	Page pg = new Page();
-	
-	
+	pgid.pid = map_page_id(i);
 	pinPage(pgid, pg, false/*no diskIO*/);
 	
-	
-	byte [] pgbuf = pg.getpage();
-	
 	// Locate the piece of the run that fits on this page.
-	int first_byte_no = first_bit_no/8;
-	int first_bit_offset = first_bit_no%8;
-	int last_bit_no = first_bit_no + run_size -1;
-	
-	if(last_bit_no >= bits_per_page )
-	  last_bit_no = bits_per_page - 1;
+	int num_bits_this_page = bits_per_page - first_bit_no;
+	if(num_bits_this_page > run_size)
+	  num_bits_this_page = run_size;
 	
-        int last_byte_no = last_bit_no / 8;
-        
-	// This loop actually flips the bits on the current page.
-	int cur_posi = first_byte_no;
-	for(;cur_posi <= last_byte_no; ++cur_posi, first_bit_offset=0)
-	  {//start forloop02
-	    
-	    int max_bits_this_byte = 8 - first_bit_offset;
-	    int num_bits_this_byte = (run_size > max_bits_this_byte?
-				      max_bits_this_byte : run_size);
-	    
-            int imask =1;
-	    int temp;
-	    imask = ((imask << num_bits_this_byte) -1)<<first_bit_offset;
-	    Integer intmask = new Integer(imask);
-	    Byte mask = new Byte(intmask.byteValue());
-	    byte bytemask = mask.byteValue();
-	    
-	    if(bit==1)
-	      {
-	        temp = (pgbuf[cur_posi] | bytemask);
-	        intmask = new Integer(temp);
-		pgbuf[cur_posi] = intmask.byteValue();
-	      }
-	    else
-	      {
-		
-		temp = pgbuf[cur_posi] & (255^bytemask);
-	        intmask = new Integer(temp);
-		pgbuf[cur_posi] = intmask.byteValue();
-	      }
-	    run_size -= num_bits_this_byte;
-	    
-	  }//end of forloop02
+	fill_bits(pg.getpage(), first_bit_no, num_bits_this_page, bit);
+	run_size -= num_bits_this_page;
 	
 	// Unpin the space-map page.
 	
@@ -807,6 +2485,54 @@ public class DB implements GlobalConst {
     
   }
 
+  /** Set num_bits bits of a space-map page, starting at bit first_bit, to
+   * the value specified.  Whole bytes inside the run are filled directly;
+   * only the partial bytes at either end need masking.
+   */
+  private static void fill_bits(byte [] pgbuf, int first_bit, int num_bits,
+				int bit) {
+
+    int cur_posi = first_bit >> 3;
+    int first_bit_offset = first_bit & 7;
+    
+    if(first_bit_offset != 0)
+      {
+	int num_bits_this_byte = 8 - first_bit_offset;
+	if(num_bits_this_byte > num_bits)
+	  num_bits_this_byte = num_bits;
+	
+	int mask = ((1 << num_bits_this_byte) - 1) << first_bit_offset;
+	pgbuf[cur_posi] = (byte) (bit == 1 ? (pgbuf[cur_posi] | mask)
+				  : (pgbuf[cur_posi] & ~mask));
+	num_bits -= num_bits_this_byte;
+	++cur_posi;
+      }
+    
+    int num_bytes = num_bits >> 3;
+    Arrays.fill(pgbuf, cur_posi, cur_posi + num_bytes,
+		(byte) (bit == 1 ? 0xff : 0));
+    cur_posi += num_bytes;
+    num_bits &= 7;
+    
+    if(num_bits != 0)
+      {
+	int mask = (1 << num_bits) - 1;
+	pgbuf[cur_posi] = (byte) (bit == 1 ? (pgbuf[cur_posi] | mask)
+				  : (pgbuf[cur_posi] & ~mask));
+      }
+  }
+
+  /** Read 64 bits of a space-map page starting at byte offset, with the
+   * bit for the lowest-numbered page in the least significant position.
+   */
+  private static long get_map_word(byte [] pgbuf, int offset) {
+
+    long word = 0;
+    for(int b = 7; b >= 0; --b)
+      word = (word << 8) | (pgbuf[offset + b] & 0xff);
+    return word;
+  }
+
   /**
    * short cut to access the pinPage function in bufmgr package.
    * @see bufmgr.pinPage
@@ -839,6 +2565,22 @@ public class DB implements GlobalConst {
 
   } // end of unpinPage
   
+  /**
+   * short cut to unpin a page changed under the write-ahead log.
+   * @see bufmgr.unpinPage
+   */
+  private void unpinPage(PageId pageno, boolean dirty, long lsn)
+    throws DiskMgrException {
+
+    try {
+      SystemDefs.JavabaseBM.unpinPage(pageno, dirty, lsn); 
+    }
+    catch (Exception e) {
+      throw new DiskMgrException(e,"DB.java: unpinPage() failed");
+    }
+
+  } // end of unpinPage
+  
   
 }//end of DB class
 
@@ -848,7 +2590,7 @@ public class DB implements GlobalConst {
 interface PageUsedBytes
 {
   int DIR_PAGE_USED_BYTES = 8 + 8;
-  int FIRST_PAGE_USED_BYTES = DIR_PAGE_USED_BYTES + 4;
+  int FIRST_PAGE_USED_BYTES = DIR_PAGE_USED_BYTES + 16;
 }
 
 /** Super class of the directory page and first page
@@ -988,6 +2730,9 @@ class DBHeaderPage implements PageUsedBytes, GlobalConst {
 class DBFirstPage extends DBHeaderPage {
 
   protected static final int NUM_DB_PAGE = MINIBASE_PAGESIZE -4;
+  protected static final int NUM_MAP_PAGE = MINIBASE_PAGESIZE -8;
+  protected static final int NUM_DATA_FILE = MINIBASE_PAGESIZE -12;
+  protected static final int DB_FLAGS = MINIBASE_PAGESIZE -16;
   
   /**
    * Default construtor 
@@ -1036,6 +2781,72 @@ class DBFirstPage extends DBHeaderPage {
     return (Convert.getIntValue(NUM_DB_PAGE, data));
   }
   
+  /**
+   * set number of space-map pages that follow the first page
+   * @param num the number of space-map pages
+   * @exception IOException I/O errors
+   */
+  public void setNumMapPages(int num)
+    throws IOException	
+    {
+      Convert.setIntValue (num, NUM_MAP_PAGE, data);
+    }
+  
+  /**
+   * return the number of space-map pages that follow the first page
+   * @return number of space-map pages, or 0 if not recorded
+   * @exception IOException I/O errors
+   */
+  public int getNumMapPages()
+    throws IOException {
+
+    return (Convert.getIntValue(NUM_MAP_PAGE, data));
+  }
+  
+  /**
+   * set number of files the DB pages are striped over
+   * @param num the number of data files
+   * @exception IOException I/O errors
+   */
+  public void setNumDataFiles(int num)
+    throws IOException	
+    {
+      Convert.setIntValue (num, NUM_DATA_FILE, data);
+    }
+  
+  /**
+   * return the number of files the DB pages are striped over
+   * @return number of data files, or 0 if not recorded
+   * @exception IOException I/O errors
+   */
+  public int getNumDataFiles()
+    throws IOException {
+
+    return (Convert.getIntValue(NUM_DATA_FILE, data));
+  }
+  
+  /**
+   * set the format flags of the DB
+   * @param flags the flags
+   * @exception IOException I/O errors
+   */
+  public void setFlags(int flags)
+    throws IOException	
+    {
+      Convert.setIntValue (flags, DB_FLAGS, data);
+    }
+  
+  /**
+   * return the format flags of the DB
+   * @return the flags
+   * @exception IOException I/O errors
+   */
+  public int getFlags()
+    throws IOException {
+
+    return (Convert.getIntValue(DB_FLAGS, data));
+  }
+  
 }
 
 /**
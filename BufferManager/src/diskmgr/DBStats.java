@@ -0,0 +1,177 @@
+/* File DBStats.java */
+
+package diskmgr;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * I/O statistics of a database: pages and bytes read and written, forces
+ * to disk, allocations, and read and write latency histograms for each
+ * class of page.  The DB registers its statistics with the platform MBean
+ * server while it is open.
+ *
+ * Comparing the time spent in reads, writes and forces with the elapsed
+ * time of a query tells whether the query was waiting on I/O.
+ */
+public class DBStats implements DBStatsMBean {
+
+  /** page classes */
+  public static final int MAP = 0;
+  public static final int DIRECTORY = 1;
+  public static final int DATA = 2;
+
+  /** buckets of a latency histogram; the last takes everything longer */
+  public static final int NUM_BUCKETS = 40;
+
+  private AtomicLong pagesRead = new AtomicLong();
+  private AtomicLong pagesWritten = new AtomicLong();
+  private AtomicLong bytesRead = new AtomicLong();
+  private AtomicLong bytesWritten = new AtomicLong();
+  private AtomicLong readNanos = new AtomicLong();
+  private AtomicLong writeNanos = new AtomicLong();
+  private AtomicLong syncs = new AtomicLong();
+  private AtomicLong syncNanos = new AtomicLong();
+  private AtomicLong allocateCalls = new AtomicLong();
+  private AtomicLong pagesAllocated = new AtomicLong();
+  private AtomicLong deallocateCalls = new AtomicLong();
+  private AtomicLong pagesDeallocated = new AtomicLong();
+
+  /** histograms indexed by page class */
+  private AtomicLongArray [] readLatencies = new AtomicLongArray[3];
+  private AtomicLongArray [] writeLatencies = new AtomicLongArray[3];
+
+  public DBStats() {
+    for (int i = 0; i < 3; ++i) {
+      readLatencies[i] = new AtomicLongArray(NUM_BUCKETS);
+      writeLatencies[i] = new AtomicLongArray(NUM_BUCKETS);
+    }
+  }
+
+  /**
+   * Count a page read.
+   * @param pageClass MAP, DIRECTORY or DATA
+   * @param bytes bytes read from disk
+   * @param nanos how long the read took
+   */
+  void read(int pageClass, int bytes, long nanos) {
+    pagesRead.incrementAndGet();
+    bytesRead.addAndGet(bytes);
+    readNanos.addAndGet(nanos);
+    readLatencies[pageClass].incrementAndGet(bucket(nanos));
+  }
+
+  /**
+   * Count a page write.
+   * @param pageClass MAP, DIRECTORY or DATA
+   * @param bytes bytes written to disk
+   * @param nanos how long the write took
+   */
+  void write(int pageClass, int bytes, long nanos) {
+    pagesWritten.incrementAndGet();
+    bytesWritten.addAndGet(bytes);
+    writeNanos.addAndGet(nanos);
+    writeLatencies[pageClass].incrementAndGet(bucket(nanos));
+  }
+
+  /**
+   * Count bytes written to disk besides the pages themselves, such as the
+   * double-write copies.
+   */
+  void writeBytes(int bytes) {
+    bytesWritten.addAndGet(bytes);
+  }
+
+  /**
+   * Count a force of a file to disk.
+   * @param nanos how long it took
+   */
+  void sync(long nanos) {
+    syncs.incrementAndGet();
+    syncNanos.addAndGet(nanos);
+  }
+
+  void allocate(int runSize) {
+    allocateCalls.incrementAndGet();
+    pagesAllocated.addAndGet(runSize);
+  }
+
+  void deallocate(int runSize) {
+    deallocateCalls.incrementAndGet();
+    pagesDeallocated.addAndGet(runSize);
+  }
+
+  /**
+   * @return the histogram bucket of a latency
+   */
+  private static int bucket(long nanos) {
+    int b = 63 - Long.numberOfLeadingZeros(Math.max(nanos, 1));
+    return Math.min(b, NUM_BUCKETS - 1);
+  }
+
+  private static long [] snapshot(AtomicLongArray histogram) {
+    long [] counts = new long[histogram.length()];
+    for (int i = 0; i < counts.length; ++i)
+      counts[i] = histogram.get(i);
+    return counts;
+  }
+
+  /**
+   * @param pageClass MAP, DIRECTORY or DATA
+   * @return the read latency histogram of the page class
+   */
+  public long [] getReadLatencies(int pageClass) {
+    return snapshot(readLatencies[pageClass]);
+  }
+
+  /**
+   * @param pageClass MAP, DIRECTORY or DATA
+   * @return the write latency histogram of the page class
+   */
+  public long [] getWriteLatencies(int pageClass) {
+    return snapshot(writeLatencies[pageClass]);
+  }
+
+  public long getPagesRead() { return pagesRead.get(); }
+  public long getPagesWritten() { return pagesWritten.get(); }
+  public long getBytesRead() { return bytesRead.get(); }
+  public long getBytesWritten() { return bytesWritten.get(); }
+  public long getReadNanos() { return readNanos.get(); }
+  public long getWriteNanos() { return writeNanos.get(); }
+  public long getSyncs() { return syncs.get(); }
+  public long getSyncNanos() { return syncNanos.get(); }
+  public long getAllocateCalls() { return allocateCalls.get(); }
+  public long getPagesAllocated() { return pagesAllocated.get(); }
+  public long getDeallocateCalls() { return deallocateCalls.get(); }
+  public long getPagesDeallocated() { return pagesDeallocated.get(); }
+
+  public long [] getMapReadLatencies() { return getReadLatencies(MAP); }
+  public long [] getDirectoryReadLatencies() { return getReadLatencies(DIRECTORY); }
+  public long [] getDataReadLatencies() { return getReadLatencies(DATA); }
+  public long [] getMapWriteLatencies() { return getWriteLatencies(MAP); }
+  public long [] getDirectoryWriteLatencies() { return getWriteLatencies(DIRECTORY); }
+  public long [] getDataWriteLatencies() { return getWriteLatencies(DATA); }
+
+  public void reset() {
+    AtomicLong [] counters = { pagesRead, pagesWritten, bytesRead,
+                               bytesWritten, readNanos, writeNanos, syncs,
+                               syncNanos, allocateCalls, pagesAllocated,
+                               deallocateCalls, pagesDeallocated };
+    for (AtomicLong c : counters)
+      c.set(0);
+    for (int i = 0; i < 3; ++i)
+      for (int b = 0; b < NUM_BUCKETS; ++b) {
+        readLatencies[i].set(b, 0);
+        writeLatencies[i].set(b, 0);
+      }
+  }
+
+  public String toString() {
+    return "pages read " + getPagesRead() + " (" + getBytesRead() + " bytes, "
+      + getReadNanos() / 1000 + " us), pages written " + getPagesWritten()
+      + " (" + getBytesWritten() + " bytes, " + getWriteNanos() / 1000
+      + " us), syncs " + getSyncs() + " (" + getSyncNanos() / 1000
+      + " us), allocated " + getPagesAllocated() + " in "
+      + getAllocateCalls() + " calls, deallocated " + getPagesDeallocated()
+      + " in " + getDeallocateCalls() + " calls";
+  }
+}
@@ -0,0 +1,38 @@
+/* File DBStatsMBean.java */
+
+package diskmgr;
+
+/**
+ * Management interface of DBStats, for JMX.  Latency histograms have
+ * DBStats.NUM_BUCKETS buckets; bucket i counts the operations that took
+ * from 2^i up to 2^(i+1) nanoseconds.
+ */
+public interface DBStatsMBean {
+
+  long getPagesRead();
+  long getPagesWritten();
+  long getBytesRead();
+  long getBytesWritten();
+  long getReadNanos();
+  long getWriteNanos();
+
+  long getSyncs();
+  long getSyncNanos();
+
+  long getAllocateCalls();
+  long getPagesAllocated();
+  long getDeallocateCalls();
+  long getPagesDeallocated();
+
+  long [] getMapReadLatencies();
+  long [] getDirectoryReadLatencies();
+  long [] getDataReadLatencies();
+  long [] getMapWriteLatencies();
+  long [] getDirectoryWriteLatencies();
+  long [] getDataWriteLatencies();
+
+  /**
+   * Set every counter and histogram back to zero.
+   */
+  void reset();
+}
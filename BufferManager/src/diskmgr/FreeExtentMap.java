@@ -0,0 +1,160 @@
+/* File FreeExtentMap.java */
+
+package diskmgr;
+
+import java.util.*;
+
+/**
+ * In-memory index of the free runs of pages (extents) in a database.
+ * Every free run is kept twice: by its first page, so that neighbouring
+ * runs can be coalesced when pages are freed, and in a bucket keyed by its
+ * length, so that the best-fitting run for a request of any size is found
+ * with a single tree lookup.
+ */
+class FreeExtentMap {
+
+  /** first page of a free run -> length of the run */
+  private TreeMap<Integer, Integer> byStart = new TreeMap<Integer, Integer>();
+
+  /** length of a free run -> first pages of all runs of that length */
+  private TreeMap<Integer, TreeSet<Integer>> bySize =
+    new TreeMap<Integer, TreeSet<Integer>>();
+
+  private int numFree = 0;
+
+  /**
+   * Forget all free runs.
+   */
+  public void clear()
+    {
+      byStart.clear();
+      bySize.clear();
+      numFree = 0;
+    }
+
+  /**
+   * Take a run of the given length out of the smallest free run that is
+   * long enough.  Among runs of that length the lowest-numbered one is used.
+   * @param runSize number of pages wanted
+   * @return the first page of the run, or -1 if no free run is long enough
+   */
+  public int allocate(int runSize)
+    {
+      Map.Entry<Integer, TreeSet<Integer>> bucket = bySize.ceilingEntry(runSize);
+      if (bucket == null)
+        return -1;
+
+      int start = bucket.getValue().first();
+      int length = bucket.getKey();
+      remove(start, length);
+      if (length > runSize)
+        insert(start + runSize, length - runSize);
+      return start;
+    }
+
+  /**
+   * Mark a given range of pages as in use.  Pages of the range that are
+   * not free are left alone.
+   * @param start first page of the range
+   * @param runSize number of pages in the range
+   */
+  public void allocate(int start, int runSize)
+    {
+      int end = start + runSize;
+      Map.Entry<Integer, Integer> e = byStart.lowerEntry(end);
+      while (e != null && e.getKey() + e.getValue() > start) {
+        int eStart = e.getKey();
+        int eEnd = eStart + e.getValue();
+        remove(eStart, e.getValue());
+        if (eStart < start)
+          insert(eStart, start - eStart);
+        if (eEnd > end)
+          insert(end, eEnd - end);
+        e = byStart.lowerEntry(eStart);
+      }
+    }
+
+  /**
+   * Return a range of pages to the free runs, merging it with any run it
+   * touches or overlaps.
+   * @param start first page of the range
+   * @param runSize number of pages in the range
+   */
+  public void free(int start, int runSize)
+    {
+      if (runSize <= 0)
+        return;
+
+      int end = start + runSize;
+      Map.Entry<Integer, Integer> e = byStart.floorEntry(start);
+      if (e != null && e.getKey() + e.getValue() >= start) {
+        start = e.getKey();
+        end = Math.max(end, start + e.getValue());
+        remove(start, e.getValue());
+      }
+
+      e = byStart.ceilingEntry(start);
+      while (e != null && e.getKey() <= end) {
+        end = Math.max(end, e.getKey() + e.getValue());
+        remove(e.getKey(), e.getValue());
+        e = byStart.ceilingEntry(start);
+      }
+
+      insert(start, end - start);
+    }
+
+  /**
+   * @param pageno a page number
+   * @return true if the page is in a free run
+   */
+  public boolean isFree(int pageno)
+    {
+      Map.Entry<Integer, Integer> e = byStart.floorEntry(pageno);
+      return e != null && e.getKey() + e.getValue() > pageno;
+    }
+
+  /**
+   * @return the total number of free pages
+   */
+  public int getNumFree()
+    {
+      return numFree;
+    }
+
+  /**
+   * Return the free runs that overlap the given range of pages, ordered by
+   * first page.  The first run returned may begin before the range.
+   * @param start first page of the range
+   * @param end one past the last page of the range
+   * @return map of first page to run length
+   */
+  public SortedMap<Integer, Integer> runs(int start, int end)
+    {
+      Integer from = byStart.floorKey(start);
+      if (from == null || byStart.get(from) + from <= start)
+        from = start;
+      return byStart.subMap(from, end);
+    }
+
+  private void insert(int start, int length)
+    {
+      byStart.put(start, length);
+      TreeSet<Integer> starts = bySize.get(length);
+      if (starts == null) {
+        starts = new TreeSet<Integer>();
+        bySize.put(length, starts);
+      }
+      starts.add(start);
+      numFree += length;
+    }
+
+  private void remove(int start, int length)
+    {
+      byStart.remove(start);
+      TreeSet<Integer> starts = bySize.get(length);
+      starts.remove(start);
+      if (starts.isEmpty())
+        bySize.remove(length);
+      numFree -= length;
+    }
+}
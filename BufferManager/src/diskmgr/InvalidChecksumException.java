@@ -0,0 +1,15 @@
+package diskmgr;
+import chainexception.*;
+
+public class InvalidChecksumException extends ChainException {
+  
+  
+  public InvalidChecksumException(Exception ex, String name) 
+    { 
+      super(ex, name); 
+    }
+}
+
+
+
+
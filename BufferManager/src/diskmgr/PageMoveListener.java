@@ -0,0 +1,31 @@
+/* File PageMoveListener.java */
+
+package diskmgr;
+
+import global.*;
+
+/**
+ * Told by DB.compact() about the pages it moves that the listener owns,
+ * so that the layer holding references to them can follow.  Only pages some listener owns are moved, apart
+ * from the DB's own header pages; the file directory entries pointing at
+ * a moved page are updated by the DB itself.
+ */
+public interface PageMoveListener {
+
+  /**
+   * @param pid a page in use
+   * @return true if the listener knows how to update whatever points to
+   *   the page when it is moved
+   */
+  boolean ownsPage(PageId pid);
+
+  /**
+   * Update every page that points to a page which has just been moved.
+   * The page is already at its new place and on disk; its old copy stays
+   * allocated until the pages updated here have been written.
+   * @param from where the page was
+   * @param to where the page is now
+   * @exception Exception the references could not be updated
+   */
+  void pageMoved(PageId from, PageId to) throws Exception;
+}
@@ -0,0 +1,69 @@
+/* File PageScrubber.java */
+
+package diskmgr;
+
+/**
+ * Background thread that reads every page of a database straight from
+ * disk and checks its checksum, over and over, at no more than a given
+ * number of pages per second.  Pages that fail are counted by the DB.
+ */
+class PageScrubber extends Thread {
+
+  /** pages checked between pauses */
+  private static final int PAGES_PER_TICK = 16;
+
+  private DB db;
+  private int pagesPerSecond;
+  private volatile boolean running = true;
+
+  /**
+   * Constructor of class PageScrubber
+   * @param db the database to check
+   * @param pagesPerSecond the most pages to read in a second
+   */
+  public PageScrubber(DB db, int pagesPerSecond)
+    {
+      super("PageScrubber-" + db.db_name());
+      setDaemon(true);
+      this.db = db;
+      this.pagesPerSecond = Math.max(1, pagesPerSecond);
+    }
+
+  public void run()
+    {
+      long tickMillis = Math.max(1, 1000L * PAGES_PER_TICK / pagesPerSecond);
+      int pid = 0;
+
+      try {
+        while (running) {
+          for (int i = 0; i < PAGES_PER_TICK && running; ++i) {
+            if (pid >= db.db_num_pages())
+              pid = 0;
+            db.verify_page(pid++);
+          }
+          Thread.sleep(tickMillis);
+        }
+      }
+      catch (InterruptedException e) {
+        // asked to stop
+      }
+      catch (Exception e) {
+        System.err.println("PageScrubber stopped: " + e);
+      }
+    }
+
+  /**
+   * Stop the scrubber and wait for it to finish.
+   */
+  public void shutdown()
+    {
+      running = false;
+      interrupt();
+      try {
+        join();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+}
@@ -2,16 +2,22 @@ package global;
 
 import bufmgr.*;
 import diskmgr.*;
+import logmgr.*;
 //import catalog.*;
 
 public class SystemDefs {
   public static BufMgr	JavabaseBM;
   public static DB	JavabaseDB;
+  public static LogMgr	JavabaseLog;
+  public static RecoveryMgr	JavabaseRecovery;
 //  public static Catalog	JavabaseCatalog;
   
   public static String  JavabaseDBName;
   public static String  JavabaseLogName;
   public static boolean MINIBASE_RESTART_FLAG = false;
+  /** keep a write-ahead log next to the database, and recover from it on
+   *  restart; off by default */
+  public static boolean MINIBASE_LOGGING = false;
   public static String	MINIBASE_DBNAME;
   
   public SystemDefs (){};
@@ -21,7 +27,7 @@ public class SystemDefs {
     {
       int logsize;
       
-      String real_logname = new String(dbname);
+      String real_logname = new String(dbname + ".log");
       String real_dbname = new String(dbname);
       
       if (num_pgs == 0) {
@@ -48,6 +54,8 @@ public class SystemDefs {
       boolean status = true;
       JavabaseBM = null;
       JavabaseDB = null;
+      JavabaseLog = null;
+      JavabaseRecovery = null;
       JavabaseDBName = null;
       JavabaseLogName = null;
 //      JavabaseCatalog = null;
@@ -84,6 +92,7 @@ public class SystemDefs {
       } 
       else {
 	try {
+	  JavabaseDB.set_page_lsns(MINIBASE_LOGGING);
 	  JavabaseDB.openDB(dbname, num_pgs);
 	  JavabaseBM.flushAllPages();
 	}
@@ -93,5 +102,23 @@ public class SystemDefs {
 	  Runtime.getRuntime().exit(1);
 	}
       }
+      
+      if (!MINIBASE_LOGGING)
+	return;
+
+      // open the write-ahead log, starting a new one with a new database,
+      // and recover an existing database from it
+      try {
+	boolean restart = MINIBASE_RESTART_FLAG || num_pgs == 0;
+	JavabaseLog = new LogMgr(logname, !restart);
+	JavabaseRecovery = new RecoveryMgr(JavabaseLog, JavabaseBM, JavabaseDB);
+	if (restart)
+	  JavabaseRecovery.restart();
+      }
+      catch (Exception e) {
+	System.err.println (""+e);
+	e.printStackTrace();
+	Runtime.getRuntime().exit(1);
+      }
     }
 }
@@ -0,0 +1,530 @@
+/* File LogMgr.java */
+
+package logmgr;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import global.*;
+
+/**
+ * The write-ahead log: an append-only file of LogRecords.  Records are
+ * gathered in memory as they are appended and only reach the file when
+ * the buffer fills or flush() is called; flush() also forces them to
+ * disk.  A page must not be written to the database before the log has
+ * been flushed past the last record that changed it, which BufMgr takes
+ * care of for pages unpinned with an LSN.  DB logs its space-map changes
+ * and the changes to its file directory pages; other page contents are
+ * only logged by callers of logUpdate.
+ *
+ * SystemDefs opens the log only when MINIBASE_LOGGING is set.
+ *
+ * Commits are forced by a log-writer thread rather than by the committing
+ * thread, so that one force covers every commit that arrived meanwhile.
+ * The writer can be told to wait a little before forcing to let a batch
+ * build up.  In asynchronous-commit mode commit() does not wait at all,
+ * and the writer forces the log no later than a set time after a commit.
+ *
+ * The log keeps the last record of every transaction not yet over, and
+ * chains each new record of a transaction to the one before.  The master
+ * record, in a file next to the log, holds the LSN of the last complete
+ * checkpoint.
+ */
+public class LogMgr {
+
+  /** records are written out, without forcing, once this much is buffered */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** default bound on how long an asynchronous commit may stay in memory */
+  private static final int DEFAULT_ASYNC_WINDOW = 200;
+
+  private RandomAccessFile file;
+  private String name;
+
+  /** records not yet written to the file */
+  private byte [] buffer = new byte[BUFFER_SIZE];
+  private int buffered = 0;
+
+  /** LSN of the first buffered byte: everything before it is in the file */
+  private long writtenLsn;
+
+  /** everything before this LSN has been forced to disk */
+  private long flushedLsn;
+
+  /** held while forcing the file, so appends can go on meanwhile */
+  private Object forceLock = new Object();
+
+  private LogWriter writer;
+  private IOException writerError;
+
+  /** commits waiting for the writer to force the log */
+  private int commitsWaiting = 0;
+
+  /** microseconds the writer waits for more commits before forcing */
+  private int commitDelay = 0;
+
+  private boolean asyncCommit = false;
+  private int asyncWindow = DEFAULT_ASYNC_WINDOW;
+
+  /** end of the last asynchronous commit, and when the oldest asynchronous
+   * commit not yet forced was made (System.nanoTime()) */
+  private long asyncCommitEnd = 0;
+  private long asyncCommitSince = 0;
+
+  /** transaction -> LSN of its last record, for transactions not over */
+  private HashMap<Integer, Long> lastLsns = new HashMap<Integer, Long>();
+
+  /** transactions that have committed but are not over yet */
+  private HashSet<Integer> committed = new HashSet<Integer>();
+
+  /**
+   * Open the log in the given file.
+   * @param fname the log file
+   * @param create true to start an empty log, false to open an existing
+   *   one, dropping any torn record at its end
+   * @exception IOException I/O errors
+   */
+  public LogMgr(String fname, boolean create)
+    throws IOException {
+
+    name = fname;
+    if (create) {
+      new File(fname).delete();
+      new File(fname + ".master").delete();
+    }
+    file = new RandomAccessFile(fname, "rw");
+
+    long end = 0;
+    LogRecord rec;
+    while ((rec = readFromFile(end)) != null)
+      end += rec.size();
+    file.setLength(end);
+
+    writtenLsn = end;
+    flushedLsn = end;
+  }
+
+  /**
+   * Add a record to the end of the log.
+   * @param rec the record; its lsn is set
+   * @return the LSN of the record
+   * @exception IOException I/O errors
+   */
+  public synchronized long append(LogRecord rec)
+    throws IOException {
+
+    int size = rec.size();
+    if (buffered + size > buffer.length) {
+      writeBuffer();
+      if (size > buffer.length)
+        buffer = new byte[size];
+    }
+
+    long lsn = writtenLsn + buffered;
+    if (rec.txnId != 0) {
+      Long prev = lastLsns.get(rec.txnId);
+      rec.prevLsn = (prev != null) ? prev : -1;
+      if (rec.type == LogRecord.END) {
+        lastLsns.remove(rec.txnId);
+        committed.remove(rec.txnId);
+      }
+      else {
+        lastLsns.put(rec.txnId, lsn);
+        if (rec.type == LogRecord.COMMIT)
+          committed.add(rec.txnId);
+      }
+    }
+
+    rec.encode(buffer, buffered);
+    rec.lsn = lsn;
+    buffered += size;
+    return lsn;
+  }
+
+  /**
+   * Log a change to a range of bytes of a page.
+   * @param pageno the page
+   * @param offset where the range starts in the page
+   * @param before the range's bytes before the change
+   * @param after the range's bytes after the change
+   * @return the LSN of the record
+   * @exception IOException I/O errors
+   */
+  public long logUpdate(PageId pageno, int offset, byte [] before, byte [] after)
+    throws IOException {
+
+    return logUpdate(0, pageno, offset, before, after);
+  }
+
+  /**
+   * Log a change to a range of bytes of a page made by a transaction.
+   * The change is undone if the transaction aborts or does not commit
+   * before a crash.
+   * @param txnId the transaction, not 0
+   * @param pageno the page
+   * @param offset where the range starts in the page
+   * @param before the range's bytes before the change
+   * @param after the range's bytes after the change
+   * @return the LSN of the record
+   * @exception IOException I/O errors
+   */
+  public long logUpdate(int txnId, PageId pageno, int offset,
+                        byte [] before, byte [] after)
+    throws IOException {
+
+    return append(new LogRecord(LogRecord.UPDATE, txnId, pageno.pid, offset,
+                                before, after));
+  }
+
+  /**
+   * Log the allocation of a run of pages.
+   * @return the LSN of the record
+   * @exception IOException I/O errors
+   */
+  public long logAllocate(PageId start, int runSize)
+    throws IOException {
+
+    return append(new LogRecord(LogRecord.ALLOCATE, 0, start.pid, runSize,
+                                null, null));
+  }
+
+  /**
+   * Log the freeing of a run of pages.
+   * @return the LSN of the record
+   * @exception IOException I/O errors
+   */
+  public long logDeallocate(PageId start, int runSize)
+    throws IOException {
+
+    return append(new LogRecord(LogRecord.DEALLOCATE, 0, start.pid, runSize,
+                                null, null));
+  }
+
+  /**
+   * Log the commit of a transaction, and its end.  Unless asynchronous
+   * commit is on, this returns once the commit record is on disk; the
+   * force is done by the log writer, together with those of other
+   * commits.
+   * @param txnId the transaction
+   * @return the LSN of the commit record
+   * @exception IOException I/O errors, here or in the log writer
+   */
+  public long commit(int txnId)
+    throws IOException {
+
+    long lsn = append(new LogRecord(LogRecord.COMMIT, txnId, -1, 0,
+                                    null, null));
+    synchronized (this) {
+      startWriter();
+      if (asyncCommit) {
+        if (asyncCommitEnd <= flushedLsn)
+          asyncCommitSince = System.nanoTime();
+        asyncCommitEnd = lsn + 1;
+        notifyAll();
+        append(new LogRecord(LogRecord.END, txnId, -1, 0, null, null));
+        return lsn;
+      }
+
+      ++commitsWaiting;
+      notifyAll();
+      try {
+        while (flushedLsn <= lsn && writerError == null)
+          wait();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("commit interrupted");
+      }
+      finally {
+        --commitsWaiting;
+      }
+      if (flushedLsn <= lsn)
+        throw writerError;
+    }
+    append(new LogRecord(LogRecord.END, txnId, -1, 0, null, null));
+    return lsn;
+  }
+
+  /**
+   * Set how long the log writer waits, once a commit is waiting, for more
+   * commits to join the same force.  0 forces at once.
+   * @param micros the delay in microseconds
+   */
+  public synchronized void setCommitDelay(int micros) {
+    commitDelay = Math.max(0, micros);
+  }
+
+  /**
+   * Turn asynchronous commit on or off.  When it is on, commit() returns
+   * without waiting for the log to be forced, and a crash can lose the
+   * commits of the last setAsyncCommitWindow() milliseconds.
+   * @param on true for asynchronous commit
+   */
+  public synchronized void setAsyncCommit(boolean on) {
+    asyncCommit = on;
+    notifyAll();
+  }
+
+  /**
+   * Set the longest time an asynchronous commit may wait to be forced.
+   * @param millis the time in milliseconds
+   */
+  public synchronized void setAsyncCommitWindow(int millis) {
+    asyncWindow = Math.max(1, millis);
+    notifyAll();
+  }
+
+  /**
+   * Force the log to disk up to and including the record at the given LSN.
+   * Does nothing if that record is already on disk.
+   * @param lsn the LSN of a record
+   * @exception IOException I/O errors
+   */
+  public void flush(long lsn)
+    throws IOException {
+
+    synchronized (forceLock) {
+      long end;
+      synchronized (this) {
+        if (lsn < flushedLsn || flushedLsn == getEndLsn())
+          return;
+        writeBuffer();
+        end = writtenLsn;
+      }
+
+      file.getFD().sync();
+
+      synchronized (this) {
+        flushedLsn = end;
+        writerError = null;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Force the whole log to disk.
+   * @exception IOException I/O errors
+   */
+  public void flushAll()
+    throws IOException {
+
+    flush(getEndLsn());
+  }
+
+  /**
+   * @return the LSN before which every record is on disk
+   */
+  public synchronized long getFlushedLsn() {
+    return flushedLsn;
+  }
+
+  /**
+   * @return the LSN the next record will get
+   */
+  public synchronized long getEndLsn() {
+    return writtenLsn + buffered;
+  }
+
+  /**
+   * Read the record at the given LSN, whether or not it has been written
+   * out yet.  The LSN of the next record is rec.lsn + rec.size().
+   * @param lsn the LSN of a record
+   * @return the record, or null at the end of the log
+   * @exception IOException I/O errors
+   * @exception LogMgrException there is no intact record at lsn
+   */
+  public synchronized LogRecord read(long lsn)
+    throws IOException, LogMgrException {
+
+    if (lsn >= getEndLsn())
+      return null;
+
+    LogRecord rec;
+    if (lsn >= writtenLsn) {
+      int off = (int) (lsn - writtenLsn);
+      rec = LogRecord.decode(buffer, off, buffered - off);
+    }
+    else {
+      rec = readFromFile(lsn);
+    }
+
+    if (rec == null)
+      throw new LogMgrException(null, "No log record at LSN " + lsn);
+    rec.lsn = lsn;
+    return rec;
+  }
+
+  /**
+   * Stop the log writer, force the log and close its file.
+   * @exception IOException I/O errors
+   */
+  public void close()
+    throws IOException {
+
+    LogWriter w;
+    synchronized (this) {
+      w = writer;
+      writer = null;
+      notifyAll();
+    }
+    if (w != null)
+      w.shutdown();
+
+    flush(getEndLsn());
+    synchronized (this) {
+      file.close();
+    }
+  }
+
+  /**
+   * @return transaction -> LSN of its last record, for every transaction
+   *   not yet over
+   */
+  public synchronized Map<Integer, Long> getTransactions() {
+    return new HashMap<Integer, Long>(lastLsns);
+  }
+
+  /**
+   * @return true if the transaction has committed
+   */
+  public synchronized boolean isCommitted(int txnId) {
+    return committed.contains(txnId);
+  }
+
+  /**
+   * Take up a transaction found in the log at restart, so that the records
+   * written to finish it are chained to its earlier ones.
+   */
+  synchronized void restoreTransaction(int txnId, long lastLsn,
+                                       boolean isCommitted) {
+    lastLsns.put(txnId, lastLsn);
+    if (isCommitted)
+      committed.add(txnId);
+  }
+
+  /**
+   * Record the LSN of the last complete checkpoint in the master record.
+   * The log must already be forced past the checkpoint.
+   * @param lsn the LSN of the checkpoint's BEGIN_CHECKPOINT record
+   * @exception IOException I/O errors
+   */
+  public void writeMaster(long lsn)
+    throws IOException {
+
+    byte [] buf = new byte[8];
+    LogRecord.putLong(buf, 0, lsn);
+    Path tmp = Paths.get(name + ".master.tmp");
+    try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+      out.write(buf);
+      out.getFD().sync();
+    }
+    Files.move(tmp, Paths.get(name + ".master"),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return the LSN of the last complete checkpoint, or -1 if there is
+   *   none in this log
+   * @exception IOException I/O errors
+   */
+  public long readMaster()
+    throws IOException {
+
+    File master = new File(name + ".master");
+    if (!master.exists() || master.length() != 8)
+      return -1;
+    byte [] buf = Files.readAllBytes(master.toPath());
+    long lsn = LogRecord.getLong(buf, 0);
+    return (lsn < getEndLsn()) ? lsn : -1;
+  }
+
+  /**
+   * @return the name of the log file
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Wait until the log writer has something to force.  Called by the log
+   * writer.
+   * @return the LSN to force up to, or -1 if the writer should stop
+   */
+  synchronized long awaitWork(LogWriter w)
+    throws InterruptedException {
+
+    while (writer == w) {
+      if (commitsWaiting > 0) {
+        // Give other commits the chance to join this force.
+        long deadline = System.nanoTime() + commitDelay * 1000L;
+        long left;
+        while (writer == w && (left = deadline - System.nanoTime()) > 0)
+          wait(left / 1000000, (int) (left % 1000000));
+        return getEndLsn();
+      }
+
+      if (asyncCommitEnd > flushedLsn) {
+        long left = asyncCommitSince + asyncWindow * 1000000L - System.nanoTime();
+        if (left <= 0)
+          return getEndLsn();
+        wait(left / 1000000, (int) (left % 1000000));
+        continue;
+      }
+
+      wait();
+    }
+    return -1;
+  }
+
+  /**
+   * Note an error met by the log writer; commits waiting on it fail.
+   */
+  synchronized void writerFailed(IOException e) {
+    writerError = e;
+    notifyAll();
+  }
+
+  private void startWriter() {
+    if (writer == null) {
+      writerError = null;
+      writer = new LogWriter(this);
+      writer.start();
+    }
+  }
+
+  private void writeBuffer()
+    throws IOException {
+
+    if (buffered == 0)
+      return;
+    file.seek(writtenLsn);
+    file.write(buffer, 0, buffered);
+    writtenLsn += buffered;
+    buffered = 0;
+  }
+
+  private LogRecord readFromFile(long lsn)
+    throws IOException {
+
+    long avail = file.length() - lsn;
+    if (avail < LogRecord.HEADER_SIZE)
+      return null;
+
+    byte [] size = new byte[4];
+    file.seek(lsn);
+    file.readFully(size);
+    int len = LogRecord.getInt(size, 0);
+    if (len < LogRecord.HEADER_SIZE || len > avail)
+      return null;
+
+    byte [] buf = new byte[len];
+    file.seek(lsn);
+    file.readFully(buf);
+    LogRecord rec = LogRecord.decode(buf, 0, len);
+    if (rec != null)
+      rec.lsn = lsn;
+    return rec;
+  }
+}
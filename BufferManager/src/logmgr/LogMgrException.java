@@ -0,0 +1,9 @@
+package logmgr;
+import chainexception.*;
+
+public class LogMgrException extends ChainException{
+
+  public LogMgrException(Exception e, String name)
+  { super(e, name); }
+ 
+}
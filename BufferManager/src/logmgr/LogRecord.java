@@ -0,0 +1,168 @@
+/* File LogRecord.java */
+
+package logmgr;
+
+import java.util.zip.CRC32C;
+import global.*;
+
+/**
+ * A record of the write-ahead log.  Every record names the transaction
+ * that wrote it (0 for none), the transaction's previous record (-1 for
+ * none) and the page it is about; what the other fields mean depends on
+ * the type:
+ *
+ *   UPDATE      bytes [offset, offset+before.length) of the page changed
+ *               from before to after
+ *   ALLOCATE    a run of offset pages starting at the page was allocated
+ *   DEALLOCATE  a run of offset pages starting at the page was freed
+ *   COMMIT      the transaction committed
+ *   ABORT       the transaction is being rolled back
+ *   END         the transaction is over: committed, or rolled back
+ *   CLR         an UPDATE was undone by setting its bytes to after;
+ *               undoNextLsn is the next record of the transaction to undo
+ *   BEGIN_CHECKPOINT, END_CHECKPOINT
+ *               a checkpoint; after holds the transaction and dirty page
+ *               tables in the END_CHECKPOINT record
+ *
+ * ALLOCATE and DEALLOCATE are only redone, never undone.
+ *
+ * DB writes ALLOCATE and DEALLOCATE for its space map, and UPDATE, with
+ * no transaction, for each change to a file directory page.  Other page
+ * contents are logged only by callers that call LogMgr.logUpdate
+ * themselves and unpin the page with the LSN it returns.
+ *
+ * On disk a record is its length and a CRC32C of the rest, followed by
+ * the fields in the order declared here.  The log sequence number (LSN)
+ * of a record is its byte offset in the log.
+ */
+public class LogRecord {
+
+  public static final byte UPDATE = 1;
+  public static final byte ALLOCATE = 2;
+  public static final byte DEALLOCATE = 3;
+  public static final byte COMMIT = 4;
+  public static final byte ABORT = 5;
+  public static final byte END = 6;
+  public static final byte CLR = 7;
+  public static final byte BEGIN_CHECKPOINT = 8;
+  public static final byte END_CHECKPOINT = 9;
+
+  /** bytes of the record before the page images */
+  static final int HEADER_SIZE = 4 + 4 + 1 + 4 + 8 + 8 + 4 + 4 + 4 + 4;
+
+  public byte type;
+  public int txnId;
+  public long prevLsn = -1;
+  public long undoNextLsn = -1;
+  public int pageId;
+  public int offset;
+  public byte [] before;
+  public byte [] after;
+
+  /** where the record is in the log; set when it is appended or read */
+  public long lsn = -1;
+
+  public LogRecord(byte type, int txnId, int pageId, int offset,
+                   byte [] before, byte [] after) {
+    this.type = type;
+    this.txnId = txnId;
+    this.pageId = pageId;
+    this.offset = offset;
+    this.before = (before != null) ? before : new byte[0];
+    this.after = (after != null) ? after : new byte[0];
+  }
+
+  /**
+   * @return the number of bytes the record takes in the log
+   */
+  public int size() {
+    return HEADER_SIZE + before.length + after.length;
+  }
+
+  /**
+   * Write the record into a buffer.
+   * @param buf the buffer
+   * @param off where the record starts in buf
+   */
+  void encode(byte [] buf, int off) {
+    int end = off + size();
+    putInt(buf, off, size());
+    int pos = off + 8;
+    buf[pos++] = type;
+    putInt(buf, pos, txnId); pos += 4;
+    putLong(buf, pos, prevLsn); pos += 8;
+    putLong(buf, pos, undoNextLsn); pos += 8;
+    putInt(buf, pos, pageId); pos += 4;
+    putInt(buf, pos, offset); pos += 4;
+    putInt(buf, pos, before.length); pos += 4;
+    System.arraycopy(before, 0, buf, pos, before.length); pos += before.length;
+    putInt(buf, pos, after.length); pos += 4;
+    System.arraycopy(after, 0, buf, pos, after.length);
+    putInt(buf, off + 4, checksum(buf, off + 8, end - off - 8));
+  }
+
+  /**
+   * Read a record out of a buffer.
+   * @param buf the buffer
+   * @param off where the record starts in buf
+   * @param avail bytes of buf from off on
+   * @return the record, or null if there is no whole, intact record there
+   */
+  static LogRecord decode(byte [] buf, int off, int avail) {
+    if (avail < HEADER_SIZE)
+      return null;
+    int size = getInt(buf, off);
+    if (size < HEADER_SIZE || size > avail
+        || getInt(buf, off + 4) != checksum(buf, off + 8, size - 8))
+      return null;
+
+    int pos = off + 8;
+    byte type = buf[pos++];
+    int txnId = getInt(buf, pos); pos += 4;
+    long prevLsn = getLong(buf, pos); pos += 8;
+    long undoNextLsn = getLong(buf, pos); pos += 8;
+    int pageId = getInt(buf, pos); pos += 4;
+    int offset = getInt(buf, pos); pos += 4;
+    byte [] before = new byte[getInt(buf, pos)]; pos += 4;
+    System.arraycopy(buf, pos, before, 0, before.length); pos += before.length;
+    byte [] after = new byte[getInt(buf, pos)]; pos += 4;
+    System.arraycopy(buf, pos, after, 0, after.length);
+    LogRecord rec = new LogRecord(type, txnId, pageId, offset, before, after);
+    rec.prevLsn = prevLsn;
+    rec.undoNextLsn = undoNextLsn;
+    return rec;
+  }
+
+  private static int checksum(byte [] buf, int off, int len) {
+    CRC32C crc = new CRC32C();
+    crc.update(buf, off, len);
+    return (int) crc.getValue();
+  }
+
+  static int getInt(byte [] b, int off) {
+    return ((b[off] & 0xff) << 24) | ((b[off+1] & 0xff) << 16)
+      | ((b[off+2] & 0xff) << 8) | (b[off+3] & 0xff);
+  }
+
+  static void putInt(byte [] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off+1] = (byte) (v >>> 16);
+    b[off+2] = (byte) (v >>> 8);
+    b[off+3] = (byte) v;
+  }
+
+  static long getLong(byte [] b, int off) {
+    return ((long) getInt(b, off) << 32) | (getInt(b, off + 4) & 0xffffffffL);
+  }
+
+  static void putLong(byte [] b, int off, long v) {
+    putInt(b, off, (int) (v >>> 32));
+    putInt(b, off + 4, (int) v);
+  }
+
+  public String toString() {
+    return "LSN " + lsn + ": type " + type + ", txn " + txnId
+      + ", page " + pageId
+      + ", offset " + offset + ", " + after.length + " bytes";
+  }
+}
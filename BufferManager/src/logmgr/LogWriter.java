@@ -0,0 +1,57 @@
+/* File LogWriter.java */
+
+package logmgr;
+
+import java.io.*;
+
+/**
+ * Background thread of a LogMgr that forces the log for commits, one
+ * force for all the commits waiting at the time.
+ */
+class LogWriter extends Thread {
+
+  private LogMgr log;
+
+  /**
+   * Constructor of class LogWriter
+   * @param log the log to force
+   */
+  public LogWriter(LogMgr log)
+    {
+      super("LogWriter-" + log.getName());
+      setDaemon(true);
+      this.log = log;
+    }
+
+  public void run()
+    {
+      try {
+        long lsn;
+        while ((lsn = log.awaitWork(this)) >= 0) {
+          try {
+            log.flush(lsn);
+          }
+          catch (IOException e) {
+            log.writerFailed(e);
+          }
+        }
+      }
+      catch (InterruptedException e) {
+        // asked to stop
+      }
+    }
+
+  /**
+   * Wait for the writer to finish.  The LogMgr must already have let go
+   * of it.
+   */
+  public void shutdown()
+    {
+      try {
+        join();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+}
@@ -0,0 +1,372 @@
+/* File RecoveryMgr.java */
+
+package logmgr;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * ARIES-style recovery over the write-ahead log: rolling back aborted
+ * transactions, taking fuzzy checkpoints and restarting after a crash.
+ *
+ * A checkpoint writes the space map to disk and logs the transaction table
+ * and the buffer manager's dirty page table, without flushing any other
+ * page.  Restart then only reads the log from the last checkpoint (or the
+ * oldest recLSN in its dirty page table, if that is earlier):
+ *
+ *   analysis  rebuilds the transaction and dirty page tables as of the
+ *             crash from the checkpoint and the records after it;
+ *   redo      repeats history: every logged change not already on its
+ *             page, by page LSN, is applied again.  Pages are split among
+ *             several threads by page id, which read and change pages
+ *             outside the buffer manager's lock;
+ *   undo      rolls back the transactions that did not commit, logging a
+ *             CLR for every change undone so that it is never undone twice.
+ */
+public class RecoveryMgr {
+
+  private LogMgr log;
+  private BufMgr bufMgr;
+  private DB db;
+  private int redoThreads = 1;
+
+  /**
+   * Constructor of class RecoveryMgr
+   * @param log the write-ahead log
+   * @param bufMgr the buffer manager the logged pages go through
+   * @param db the database
+   */
+  public RecoveryMgr(LogMgr log, BufMgr bufMgr, DB db) {
+    this.log = log;
+    this.bufMgr = bufMgr;
+    this.db = db;
+  }
+
+  /**
+   * Set how many threads redo pages at restart.
+   * @param n the number of threads
+   */
+  public void setRedoThreads(int n) {
+    redoThreads = Math.max(1, n);
+  }
+
+  /**
+   * Take a fuzzy checkpoint and make it the one restart starts from.
+   * @return the LSN of the checkpoint
+   * @exception LogMgrException the checkpoint could not be taken
+   */
+  public long checkpoint()
+    throws LogMgrException {
+
+    try {
+      long begin = log.append(new LogRecord(LogRecord.BEGIN_CHECKPOINT, 0,
+                                            -1, 0, null, null));
+
+      Map<Integer, Long> dpt;
+      synchronized (bufMgr) {
+        db.force_space_map();
+        dpt = bufMgr.getDirtyPageTable();
+      }
+      Map<Integer, Long> txns = log.getTransactions();
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(txns.size());
+      for (Map.Entry<Integer, Long> t : txns.entrySet()) {
+        out.writeInt(t.getKey());
+        out.writeLong(t.getValue());
+        out.writeBoolean(log.isCommitted(t.getKey()));
+      }
+      out.writeInt(dpt.size());
+      for (Map.Entry<Integer, Long> d : dpt.entrySet()) {
+        out.writeInt(d.getKey());
+        out.writeLong(d.getValue());
+      }
+
+      long end = log.append(new LogRecord(LogRecord.END_CHECKPOINT, 0, -1, 0,
+                                          null, bytes.toByteArray()));
+      log.flush(end);
+      log.writeMaster(begin);
+      return begin;
+    }
+    catch (Exception e) {
+      throw new LogMgrException(e, "RecoveryMgr: checkpoint failed");
+    }
+  }
+
+  /**
+   * Roll back a transaction and end it.
+   * @param txnId the transaction
+   * @exception LogMgrException the rollback failed
+   */
+  public void abort(int txnId)
+    throws LogMgrException {
+
+    try {
+      if (!log.getTransactions().containsKey(txnId))
+        return;
+      log.append(new LogRecord(LogRecord.ABORT, txnId, -1, 0, null, null));
+      rollback(txnId, log.getTransactions().get(txnId));
+    }
+    catch (LogMgrException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new LogMgrException(e, "RecoveryMgr: abort failed");
+    }
+  }
+
+  /**
+   * Bring the database back to a consistent state after a crash: redo
+   * the log from the last checkpoint, then roll back the transactions
+   * that had not committed.  A checkpoint is taken at the end.
+   * @exception LogMgrException recovery failed
+   */
+  public void restart()
+    throws LogMgrException {
+
+    try {
+      HashMap<Integer, Long> txns = new HashMap<Integer, Long>();
+      HashSet<Integer> committed = new HashSet<Integer>();
+      HashMap<Integer, Long> dpt = new HashMap<Integer, Long>();
+
+      long checkpoint = log.readMaster();
+      analysis(Math.max(checkpoint, 0), txns, committed, dpt);
+
+      // Allocations before the checkpoint are in the space map on disk;
+      // those after it are redone.  Without a checkpoint all are redone.
+      long allocStart = Math.max(checkpoint, 0);
+      long redoStart = allocStart;
+      for (long recLsn : dpt.values())
+        redoStart = Math.min(redoStart, recLsn);
+      redo(redoStart, allocStart, dpt);
+      db.reload_file_directory();
+
+      for (Map.Entry<Integer, Long> t : txns.entrySet())
+        log.restoreTransaction(t.getKey(), t.getValue(),
+                               committed.contains(t.getKey()));
+      for (Map.Entry<Integer, Long> t : txns.entrySet()) {
+        if (committed.contains(t.getKey()))
+          log.append(new LogRecord(LogRecord.END, t.getKey(), -1, 0,
+                                   null, null));
+        else
+          rollback(t.getKey(), t.getValue());
+      }
+
+      log.flushAll();
+      checkpoint();
+    }
+    catch (LogMgrException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new LogMgrException(e, "RecoveryMgr: restart failed");
+    }
+  }
+
+  /**
+   * Rebuild the transaction and dirty page tables from the checkpoint at
+   * the given LSN and the records after it.
+   */
+  private void analysis(long start, Map<Integer, Long> txns,
+                        Set<Integer> committed, Map<Integer, Long> dpt)
+    throws IOException, LogMgrException {
+
+    HashSet<Integer> ended = new HashSet<Integer>();
+    LogRecord rec;
+    for (long lsn = start; (rec = log.read(lsn)) != null; lsn += rec.size()) {
+      if (rec.type == LogRecord.END_CHECKPOINT) {
+        // The tables were taken after the checkpoint began, so entries
+        // already seen since then are newer, and transactions that have
+        // ended since then may still be in them.
+        DataInputStream in =
+          new DataInputStream(new ByteArrayInputStream(rec.after));
+        for (int n = in.readInt(); n > 0; --n) {
+          int txnId = in.readInt();
+          long lastLsn = in.readLong();
+          boolean isCommitted = in.readBoolean();
+          if (!txns.containsKey(txnId) && !ended.contains(txnId)) {
+            txns.put(txnId, lastLsn);
+            if (isCommitted)
+              committed.add(txnId);
+          }
+        }
+        for (int n = in.readInt(); n > 0; --n) {
+          int pid = in.readInt();
+          long recLsn = in.readLong();
+          Long seen = dpt.get(pid);
+          if (seen == null || recLsn < seen)
+            dpt.put(pid, recLsn);
+        }
+        continue;
+      }
+
+      if (rec.txnId != 0) {
+        if (rec.type == LogRecord.END) {
+          txns.remove(rec.txnId);
+          committed.remove(rec.txnId);
+          ended.add(rec.txnId);
+        }
+        else {
+          txns.put(rec.txnId, lsn);
+          if (rec.type == LogRecord.COMMIT)
+            committed.add(rec.txnId);
+        }
+      }
+
+      if ((rec.type == LogRecord.UPDATE || rec.type == LogRecord.CLR)
+          && !dpt.containsKey(rec.pageId))
+        dpt.put(rec.pageId, lsn);
+    }
+  }
+
+  /**
+   * Repeat history from the given LSN.  Page changes go to redo threads
+   * by page id, so the changes to any one page are applied in log order;
+   * allocations are applied here, in log order too, before any later
+   * change is handed out.
+   */
+  private void redo(long start, long allocStart, Map<Integer, Long> dpt)
+    throws Exception {
+
+    int n = redoThreads;
+    ExecutorService pool = (n > 1) ? Executors.newFixedThreadPool(n) : null;
+    List<BlockingQueue<LogRecord>> queues = new ArrayList<BlockingQueue<LogRecord>>();
+    List<Future<?>> workers = new ArrayList<Future<?>>();
+    for (int i = 0; pool != null && i < n; ++i) {
+      final BlockingQueue<LogRecord> queue = new LinkedBlockingQueue<LogRecord>();
+      queues.add(queue);
+      workers.add(pool.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            LogRecord r;
+            while ((r = queue.take()).type != LogRecord.END)
+              redoPage(r);
+            return null;
+          }
+        }));
+    }
+
+    try {
+      LogRecord rec;
+      for (long lsn = start; (rec = log.read(lsn)) != null; lsn += rec.size()) {
+        if (rec.type == LogRecord.ALLOCATE || rec.type == LogRecord.DEALLOCATE) {
+          if (lsn >= allocStart)
+            synchronized (bufMgr) {
+              db.redo_allocation(new PageId(rec.pageId), rec.offset,
+                                 rec.type == LogRecord.ALLOCATE);
+            }
+        }
+        else if (rec.type == LogRecord.UPDATE || rec.type == LogRecord.CLR) {
+          // A page not in the table, or cleaned after this change, needs
+          // nothing from this record.
+          Long recLsn = dpt.get(rec.pageId);
+          if (recLsn == null || lsn < recLsn)
+            continue;
+          if (pool == null)
+            redoPage(rec);
+          else
+            queues.get(rec.pageId % n).put(rec);
+        }
+      }
+
+      for (BlockingQueue<LogRecord> queue : queues)
+        queue.put(new LogRecord(LogRecord.END, 0, -1, 0, null, null));
+      for (Future<?> w : workers) {
+        try {
+          w.get();
+        }
+        catch (ExecutionException e) {
+          throw (Exception) e.getCause();
+        }
+      }
+    }
+    finally {
+      if (pool != null)
+        pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Apply a logged page change again unless the page already has it.
+   * Only this page's redo thread touches it, so a page that is not in the
+   * pool stays out of it while it is read from disk and changed; the
+   * buffer manager's lock is held only to look it up, pin and unpin it.
+   */
+  private void redoPage(LogRecord rec)
+    throws Exception {
+
+    PageId pid = new PageId(rec.pageId);
+    Page page = new Page();
+    boolean cached;
+    long pageLsn = -1;
+    synchronized (bufMgr) {
+      cached = bufMgr.isInPool(pid);
+      if (cached) {
+        bufMgr.pinPage(pid, page, false);
+        pageLsn = bufMgr.getPageLsn(pid);
+      }
+    }
+
+    if (!cached) {
+      // A page already past this change on disk need not enter the pool.
+      if (db.read_page_lsn(pid, page) >= rec.lsn)
+        return;
+      System.arraycopy(rec.after, 0, page.getpage(), rec.offset,
+                       rec.after.length);
+      Page frame = new Page();
+      synchronized (bufMgr) {
+        bufMgr.pinPage(pid, frame, true);
+        System.arraycopy(page.getpage(), 0, frame.getpage(), 0,
+                         GlobalConst.MINIBASE_PAGESIZE);
+        bufMgr.unpinPage(pid, true, rec.lsn);
+      }
+      return;
+    }
+
+    boolean apply = pageLsn < rec.lsn;
+    if (apply)
+      System.arraycopy(rec.after, 0, page.getpage(), rec.offset,
+                       rec.after.length);
+
+    synchronized (bufMgr) {
+      bufMgr.unpinPage(pid, apply, apply ? rec.lsn : -1);
+    }
+  }
+
+  /**
+   * Undo a transaction's changes, newest first, from the given record on,
+   * and end the transaction.
+   */
+  private void rollback(int txnId, long lsn)
+    throws Exception {
+
+    while (lsn >= 0) {
+      LogRecord rec = log.read(lsn);
+      if (rec.type == LogRecord.UPDATE) {
+        PageId pid = new PageId(rec.pageId);
+        Page page = new Page();
+        synchronized (bufMgr) {
+          bufMgr.pinPage(pid, page, false);
+          System.arraycopy(rec.before, 0, page.getpage(), rec.offset,
+                           rec.before.length);
+          LogRecord clr = new LogRecord(LogRecord.CLR, txnId, rec.pageId,
+                                        rec.offset, null, rec.before);
+          clr.undoNextLsn = rec.prevLsn;
+          bufMgr.unpinPage(pid, true, log.append(clr));
+        }
+        lsn = rec.prevLsn;
+      }
+      else if (rec.type == LogRecord.CLR) {
+        lsn = rec.undoNextLsn;
+      }
+      else {
+        lsn = rec.prevLsn;
+      }
+    }
+    log.append(new LogRecord(LogRecord.END, txnId, -1, 0, null, null));
+  }
+}
@@ -592,13 +592,159 @@ class BMDriver extends TestDriver implements GlobalConst {
 }
 
   /**
-   * overrides the test4 function in TestDriver
+   * overrides the test4 function in TestDriver.  It crashes a logged
+   * database and restarts it: committed changes must survive, changes of
+   * transactions that did not commit must be undone, and restarting a
+   * second time must give the same pages.
    *
    * @return whether test4 has passed
    */
   protected boolean test4 () {
 
-    return true;
+    System.out.print("\n  Test 4 crashes a logged database and restarts it\n");
+
+    String crashpath = dbpath + "-crash";
+    int numPages = 40;
+    PageId [] pids = new PageId[numPages];
+    boolean status = OK;
+
+    BufMgr oldBM = SystemDefs.JavabaseBM;
+    DB oldDB = SystemDefs.JavabaseDB;
+    logmgr.LogMgr oldLog = SystemDefs.JavabaseLog;
+    logmgr.RecoveryMgr oldRecovery = SystemDefs.JavabaseRecovery;
+    removeCrashFiles(crashpath);
+
+    try {
+      SystemDefs.MINIBASE_LOGGING = true;
+      new SystemDefs(crashpath, 100, 12, "Clock");
+
+      System.out.print("  - Change pages in committed, loser and aborted "
+		       + "transactions\n");
+      for (int i = 0; i < numPages; ++i) {
+	pids[i] = new PageId();
+	SystemDefs.JavabaseDB.allocate_page(pids[i]);
+      }
+      SystemDefs.JavabaseDB.add_file_entry("gone", pids[0]);
+      for (int i = 0; i < numPages; ++i)
+	loggedWrite(1, pids[i], 0, 1000 + i);
+      SystemDefs.JavabaseLog.commit(1);
+      SystemDefs.JavabaseRecovery.checkpoint();
+      for (int i = 0; i < numPages; i += 2)
+	loggedWrite(2, pids[i], 0, 2000 + i);	// never commits
+      for (int i = 1; i < numPages; i += 2)
+	loggedWrite(3, pids[i], 4, 3000 + i);
+      SystemDefs.JavabaseLog.commit(3);
+      for (int i = 0; i < 10; ++i)
+	loggedWrite(4, pids[i], 8, 4000 + i);
+      SystemDefs.JavabaseRecovery.abort(4);
+      // the loser's changes reach disk before the crash
+      SystemDefs.JavabaseBM.flushAllPages();
+
+      System.out.print("  - Change the file directory after the last "
+		       + "flush\n");
+      SystemDefs.JavabaseDB.delete_file_entry("gone");
+      SystemDefs.JavabaseDB.add_file_entry("kept", pids[1]);
+      SystemDefs.JavabaseLog.flushAll();
+
+      for (int restart = 1; status == OK && restart <= 2; ++restart) {
+	System.out.print("  - Crash, and restart (" + restart + ")\n");
+	crashAndRestart(crashpath);
+
+	for (int i = 0; status == OK && i < numPages; ++i) {
+	  int v0 = loggedRead(pids[i], 0);
+	  int v4 = loggedRead(pids[i], 4);
+	  int v8 = loggedRead(pids[i], 8);
+	  if (v0 != 1000 + i || v4 != ((i % 2 == 1) ? 3000 + i : 0)
+	      || v8 != 0) {
+	    status = FAIL;
+	    System.err.print("*** Wrong data on page " + pids[i].pid
+			     + " after restart " + restart + "\n");
+	  }
+	}
+
+	PageId kept = SystemDefs.JavabaseDB.get_file_entry("kept");
+	if (status == OK && (kept == null || kept.pid != pids[1].pid
+			     || SystemDefs.JavabaseDB.get_file_entry("gone") != null)) {
+	  status = FAIL;
+	  System.err.print("*** File directory changes lost after restart "
+			   + restart + "\n");
+	}
+      }
+    }
+    catch (Exception e) {
+      status = FAIL;
+      System.err.print("*** Crash and restart failed\n");
+      e.printStackTrace();
+    }
+    finally {
+      SystemDefs.MINIBASE_LOGGING = false;
+      SystemDefs.JavabaseBM = oldBM;
+      SystemDefs.JavabaseDB = oldDB;
+      SystemDefs.JavabaseLog = oldLog;
+      SystemDefs.JavabaseRecovery = oldRecovery;
+      removeCrashFiles(crashpath);
+    }
+
+    if ( status == OK )
+      System.out.print("  Test 4 completed successfully.\n");
+
+    return status;
+  }
+
+  /**
+   * Drops the buffer pool without writing it, then reopens the database
+   * and its log and restarts with two redo threads.
+   */
+  protected void crashAndRestart (String path) throws Exception {
+
+    BufMgr bm = new BufMgr(12, "Clock");
+    DB db = new DB();
+    SystemDefs.JavabaseBM = bm;
+    SystemDefs.JavabaseDB = db;
+    db.openDB(path);
+    logmgr.LogMgr log = new logmgr.LogMgr(path + ".log", false);
+    logmgr.RecoveryMgr recovery = new logmgr.RecoveryMgr(log, bm, db);
+    SystemDefs.JavabaseLog = log;
+    SystemDefs.JavabaseRecovery = recovery;
+    recovery.setRedoThreads(2);
+    recovery.restart();
+  }
+
+  /**
+   * Writes an int to a page in a transaction, logging the change.
+   */
+  protected void loggedWrite (int txn, PageId pid, int offset, int value)
+    throws Exception {
+
+    Page pg = new Page();
+    SystemDefs.JavabaseBM.pinPage(pid, pg, /*emptyPage:*/ false);
+    byte [] before = Arrays.copyOfRange(pg.getpage(), offset, offset + 4);
+    Convert.setIntValue(value, offset, pg.getpage());
+    byte [] after = Arrays.copyOfRange(pg.getpage(), offset, offset + 4);
+    long lsn = SystemDefs.JavabaseLog.logUpdate(txn, pid, offset, before, after);
+    SystemDefs.JavabaseBM.unpinPage(pid, /*dirty:*/ true, lsn);
+  }
+
+  /**
+   * Reads an int from a page.
+   */
+  protected int loggedRead (PageId pid, int offset) throws Exception {
+
+    Page pg = new Page();
+    SystemDefs.JavabaseBM.pinPage(pid, pg, /*emptyPage:*/ false);
+    int value = Convert.getIntValue(offset, pg.getpage());
+    SystemDefs.JavabaseBM.unpinPage(pid, /*dirty:*/ false);
+    return value;
+  }
+
+  /**
+   * Removes a database and the files kept next to it.
+   */
+  protected void removeCrashFiles (String path) {
+
+    String [] suffixes = { "", ".chg", ".log", ".log.master" };
+    for (String suffix : suffixes)
+      new File(path + suffix).delete();
   }
 
   /**
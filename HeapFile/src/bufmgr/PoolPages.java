@@ -0,0 +1,42 @@
+package bufmgr;
+
+import java.util.ArrayList;
+
+import global.GlobalConst;
+
+/**
+ * Drops pages from the buffer pool without deallocating them, one frame at
+ * a time as BufMgr.freePage does, so that a caller freeing a run of pages
+ * can then hand the whole run back to the disk manager in one call.
+ */
+public class PoolPages implements GlobalConst {
+
+  /**
+   * Drops every page of a run from the buffer pool without writing it.
+   * Pages of the run that are not in the pool are left alone.
+   *
+   * @param bufMgr the buffer manager
+   * @param start the first page of the run
+   * @param count the number of pages in the run
+   * @throws IllegalArgumentException if a page of the run is pinned
+   */
+  public static void discard(BufMgr bufMgr, int start, int count) {
+    ArrayList<FrameDesc> frames = new ArrayList<FrameDesc>();
+    for (FrameDesc fdesc : bufMgr.pagemap.values()) {
+      int pid = fdesc.pageno.pid;
+      if (pid >= start && pid < start + count) {
+        if (fdesc.pincnt > 0) {
+          throw new IllegalArgumentException("Page currently pinned");
+        }
+        frames.add(fdesc);
+      }
+    }
+    for (FrameDesc fdesc : frames) {
+      bufMgr.pagemap.remove(fdesc.pageno.pid);
+      fdesc.pageno.pid = INVALID_PAGEID;
+      fdesc.pincnt = 0;
+      fdesc.dirty = false;
+      bufMgr.replacer.freePage(fdesc);
+    }
+  }
+}
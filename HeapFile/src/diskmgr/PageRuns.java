@@ -0,0 +1,58 @@
+package diskmgr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import global.GlobalConst;
+import global.Minibase;
+import global.PageId;
+
+/**
+ * Reads and writes runs of adjacent pages of a DiskMgr's database file,
+ * each run with one call on the file, where read_page and write_page take
+ * one call per page.
+ */
+public class PageRuns implements GlobalConst {
+
+  /**
+   * Writes a run of pages with one seek and one write.
+   *
+   * @param diskMgr the disk manager
+   * @param start the first page of the run
+   * @param data the pages, one after another
+   * @param count the number of pages in the run
+   * @throws IllegalArgumentException if the run is not in the database
+   */
+  public static void write_pages(DiskMgr diskMgr, PageId start, byte[] data, int count) {
+    if (start.pid < 0 || count < 0 || start.pid + count > diskMgr.num_pages) {
+      throw new IllegalArgumentException("Invalid page number; write aborted");
+    }
+    try {
+      diskMgr.fp.seek((long) start.pid * PAGE_SIZE);
+      diskMgr.fp.write(data, 0, count * PAGE_SIZE);
+      diskMgr.write_cnt += count;
+    } catch (IOException e) {
+      Minibase.haltSystem(e);
+    }
+  }
+
+  /**
+   * Reads a run of pages into a buffer, as many as it has room for, without
+   * moving the file's position, so that it may be called from a thread
+   * other than the one using the disk manager.  The pages are not counted
+   * as read, since the disk manager hands them to no one.  The calling
+   * thread must not be interrupted, which would close the file.
+   *
+   * @param diskMgr the disk manager
+   * @param start the first page of the run
+   * @param buf where the pages go
+   * @throws IOException if the file could not be read
+   */
+  public static void read_ahead(DiskMgr diskMgr, PageId start, ByteBuffer buf)
+      throws IOException {
+    long pos = (long) start.pid * PAGE_SIZE;
+    while (buf.hasRemaining()
+           && diskMgr.fp.getChannel().read(buf, pos + buf.position()) > 0) {
+    }
+  }
+}
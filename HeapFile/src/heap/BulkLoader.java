@@ -0,0 +1,292 @@
+package heap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * Loads records into a heap file without going through the buffer pool.
+ * Pages are packed full in private memory, on runs of pages allocated
+ * together, and each run is written straight to disk, with one write of
+ * the whole run, once it is full.  When the load is finished the new pages are linked onto the end
+ * of the file and entered in its directory in one step; until then the
+ * file does not see them.
+ *
+ * Records come one at a time, from a stream of fixed-length binary records,
+ * or from CSV text converted field by field.
+ */
+public class BulkLoader implements GlobalConst {
+
+  /** Pages allocated together, unless the disk is too fragmented. */
+  public static final int DEFAULT_RUN_SIZE = 64;
+
+  private HeapFile heapFile;
+  private DiskMgr diskMgr;
+  private int runSize;
+
+  /** the current run: its first page, its page images, how many are used */
+  private PageId runStart;
+  private int runLength;
+  private Page[] images;
+  private HFPage[] pages;
+  private int used;
+
+  /** the pages of a run laid out as on disk */
+  private byte[] runBuffer;
+
+  /** runs written so far, as first page -> length */
+  private LinkedHashMap<PageId, Integer> runs = new LinkedHashMap<>();
+
+  /** every page loaded, with its free space and record count */
+  private int[] pids = new int[64];
+  private int[] freeSpace = new int[64];
+  private int[] recCnts = new int[64];
+  private int pageCount = 0;
+
+  private int recCnt = 0;
+  private boolean finished = false;
+
+  public BulkLoader(HeapFile heapFile) {
+    this(heapFile, DEFAULT_RUN_SIZE);
+  }
+
+  public BulkLoader(HeapFile heapFile, int runSize) {
+    this.heapFile = heapFile;
+    this.diskMgr = heapFile.diskMgr;
+    this.runSize = Math.max(1, runSize);
+    this.images = new Page[this.runSize];
+    this.pages = new HFPage[this.runSize];
+    for (int i = 0; i < this.runSize; i++) {
+      images[i] = new Page();
+      pages[i] = new HFPage(images[i]);
+    }
+    this.runBuffer = new byte[this.runSize * PAGE_SIZE];
+  }
+
+  /**
+   * Adds a record to the load.
+   *
+   * @throws IllegalArgumentException if the record is too large
+   * @throws IllegalStateException if the load is finished
+   */
+  public void add(byte[] record) throws DiskMgrException {
+    if (finished) {
+      throw new IllegalStateException("Load already finished");
+    }
+    if (record.length + HFPage.SLOT_SIZE > MAX_TUPSIZE) {
+      throw new IllegalArgumentException("Record size exceeds page size");
+    }
+    if (used == 0 || pages[used - 1].insertRecord(record) == null) {
+      if (runStart == null || used == runLength) {
+        nextRun();
+      }
+      HFPage page = pages[used++];
+      page.initDefaults();
+      page.setCurPage(new PageId(runStart.pid + used - 1));
+      page.insertRecord(record);
+    }
+    recCnt++;
+  }
+
+  /**
+   * Adds every record of a stream of fixed-length binary records.
+   *
+   * @return the number of records added
+   * @throws IOException if the stream ends in the middle of a record
+   */
+  public int loadFixed(InputStream in, int recordLength)
+      throws IOException, DiskMgrException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+    int count = 0;
+    while (true) {
+      byte[] record = new byte[recordLength];
+      int first = data.read();
+      if (first < 0) {
+        return count;
+      }
+      record[0] = (byte) first;
+      try {
+        data.readFully(record, 1, recordLength - 1);
+      } catch (EOFException e) {
+        throw new IOException("Stream ends in the middle of record " + count);
+      }
+      add(record);
+      count++;
+    }
+  }
+
+  /**
+   * Adds a record for every line of CSV text.  Fields are converted by
+   * type, as AttrType gives it, and laid out one after another: integers
+   * and floats in 4 bytes, strings in the next of strSizes, cut off or
+   * padded with zero bytes.  Fields may be quoted, with "" for a quote.
+   *
+   * @return the number of records added
+   * @throws IOException if a line has too few fields, or a number does not
+   * parse
+   */
+  public int loadCsv(Reader in, int[] types, int[] strSizes)
+      throws IOException, DiskMgrException {
+    int length = 0;
+    for (int i = 0, s = 0; i < types.length; i++) {
+      length += (types[i] == AttrType.STRING) ? strSizes[s++] : 4;
+    }
+
+    BufferedReader lines = new BufferedReader(in, 64 * 1024);
+    List<String> fields = new ArrayList<>();
+    int count = 0;
+    String line;
+    while ((line = lines.readLine()) != null) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      splitCsv(line, fields);
+      if (fields.size() < types.length) {
+        throw new IOException("Line " + (count + 1) + " has " + fields.size()
+                              + " fields, not " + types.length);
+      }
+      byte[] record = new byte[length];
+      int offset = 0;
+      for (int i = 0, s = 0; i < types.length; i++) {
+        String field = fields.get(i);
+        try {
+          if (types[i] == AttrType.INTEGER) {
+            Convert.setIntValue(Integer.parseInt(field.trim()), offset, record);
+            offset += 4;
+          } else if (types[i] == AttrType.FLOAT) {
+            Convert.setFloatValue(Float.parseFloat(field.trim()), offset, record);
+            offset += 4;
+          } else {
+            byte[] bytes = field.getBytes();
+            System.arraycopy(bytes, 0, record, offset, Math.min(bytes.length, strSizes[s]));
+            offset += strSizes[s++];
+          }
+        } catch (NumberFormatException e) {
+          throw new IOException("Line " + (count + 1) + ", field " + (i + 1)
+                                + ": " + e.getMessage());
+        }
+      }
+      add(record);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Writes the last pages, links all loaded pages onto the end of the file
+   * and enters them in its directory.
+   *
+   * @return the number of records loaded
+   */
+  public int finish() throws DiskMgrException {
+    if (finished) {
+      return recCnt;
+    }
+    finished = true;
+    if (runStart != null) {
+      writeRun(INVALID_PAGEID);
+      if (used < runLength) {
+        diskMgr.deallocate_page(new PageId(runStart.pid + used), runLength - used);
+      }
+      runs.put(runStart, used);
+    }
+    if (pageCount > 0) {
+      heapFile.appendPages(pids, freeSpace, recCnts, pageCount, runs);
+    }
+    return recCnt;
+  }
+
+  /**
+   * Allocates the next run, and writes out the one before it, whose last
+   * page can now point to the new run.
+   */
+  private void nextRun() throws DiskMgrException {
+    int size = runSize;
+    PageId start = null;
+    while (start == null) {
+      try {
+        start = diskMgr.allocate_page(size);
+      } catch (Exception e) {
+        if (size == 1) {
+          throw new DiskMgrException(e, "BulkLoader: no room for the load");
+        }
+        size /= 2;
+      }
+    }
+    if (runStart != null) {
+      writeRun(start.pid);
+      runs.put(runStart, runLength);
+    }
+    runStart = start;
+    runLength = size;
+    used = 0;
+  }
+
+  /**
+   * Chains the pages of the current run and writes them to disk in one
+   * write.  The first page loaded is linked back to the file only by
+   * finish(), since records inserted meanwhile may add pages to the file.
+   */
+  private void writeRun(int nextPage) {
+    int prev = (pageCount == 0) ? INVALID_PAGEID : pids[pageCount - 1];
+    for (int i = 0; i < used; i++) {
+      int pid = runStart.pid + i;
+      pages[i].setPrevPage(new PageId(prev));
+      pages[i].setNextPage(new PageId(i + 1 < used ? pid + 1 : nextPage));
+      System.arraycopy(images[i].getData(), 0, runBuffer, i * PAGE_SIZE, PAGE_SIZE);
+
+      if (pageCount == pids.length) {
+        pids = Arrays.copyOf(pids, pageCount * 2);
+        freeSpace = Arrays.copyOf(freeSpace, pageCount * 2);
+        recCnts = Arrays.copyOf(recCnts, pageCount * 2);
+      }
+      pids[pageCount] = pid;
+      freeSpace[pageCount] = pages[i].getFreeSpace();
+      recCnts[pageCount] = pages[i].getSlotCount();
+      pageCount++;
+      prev = pid;
+    }
+    PageRuns.write_pages(diskMgr, runStart, runBuffer, used);
+  }
+
+  /**
+   * Splits a line of CSV text into its fields.
+   */
+  private static void splitCsv(String line, List<String> fields) {
+    fields.clear();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    fields.add(field.toString());
+  }
+}
@@ -0,0 +1,68 @@
+package heap;
+
+import global.Page;
+
+/**
+ * A directory page of a heap file.  It lists data pages of the file, each
+ * with its free space and the number of records on it, in the order the
+ * pages were added to the file.  The directory pages of a file form a
+ * chain, and every page but the last is full.
+ */
+class DirPage extends Page {
+    protected static final int NEXT_PAGE = 0;
+    protected static final int ENTRY_CNT = 4;
+    protected static final int HEADER_SIZE = 8;
+
+    /** an entry: page id, free space, record count */
+    protected static final int ENTRY_SIZE = 8;
+    protected static final int ENTRY_PID = 0;
+    protected static final int ENTRY_FREE = 4;
+    protected static final int ENTRY_REC_CNT = 6;
+
+    /** most entries one directory page holds */
+    protected static final int CAPACITY = (PAGE_SIZE - HEADER_SIZE) / ENTRY_SIZE;
+
+    public DirPage(Page page) {
+        super(page.getData());
+    }
+
+    protected void initDefaults() {
+        this.setIntValue(-1, NEXT_PAGE);
+        this.setIntValue(0, ENTRY_CNT);
+    }
+
+    public int getNextPage() {
+        return this.getIntValue(NEXT_PAGE);
+    }
+
+    public void setNextPage(int pid) {
+        this.setIntValue(pid, NEXT_PAGE);
+    }
+
+    public int getEntryCount() {
+        return this.getIntValue(ENTRY_CNT);
+    }
+
+    public void setEntryCount(int count) {
+        this.setIntValue(count, ENTRY_CNT);
+    }
+
+    public int getPageId(int i) {
+        return this.getIntValue(HEADER_SIZE + i * ENTRY_SIZE + ENTRY_PID);
+    }
+
+    public int getFreeSpace(int i) {
+        return this.getShortValue(HEADER_SIZE + i * ENTRY_SIZE + ENTRY_FREE);
+    }
+
+    public int getRecCnt(int i) {
+        return this.getShortValue(HEADER_SIZE + i * ENTRY_SIZE + ENTRY_REC_CNT);
+    }
+
+    public void setEntry(int i, int pid, int freeSpace, int recCnt) {
+        int pos = HEADER_SIZE + i * ENTRY_SIZE;
+        this.setIntValue(pid, pos + ENTRY_PID);
+        this.setShortValue((short) freeSpace, pos + ENTRY_FREE);
+        this.setShortValue((short) recCnt, pos + ENTRY_REC_CNT);
+    }
+}
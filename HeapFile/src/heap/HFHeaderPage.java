@@ -0,0 +1,79 @@
+package heap;
+
+import global.Page;
+import global.PageId;
+
+/**
+ * The header page of a heap file: the page its directory entry points to.
+ * It holds what is needed to open the file again: the ends of the data
+ * page chain, the first page of the directory, and how much of the newest
+ * extent has been handed out.  Record counts are kept in the directory.
+ */
+class HFHeaderPage extends Page {
+    protected static final int MAGIC = 0;
+    protected static final int FIRST_PAGE = 4;
+    protected static final int LAST_PAGE = 8;
+    protected static final int DIR_PAGE = 12;
+    protected static final int NEXT_EXTENT_PAGE = 16;
+    protected static final int EXTENT_END = 20;
+
+    /** first word of every heap file header page */
+    protected static final int HEADER_MAGIC = 0x48465032;
+
+    public HFHeaderPage(Page page) {
+        super(page.getData());
+    }
+
+    protected void initDefaults() {
+        this.setIntValue(HEADER_MAGIC, MAGIC);
+        this.setIntValue(-1, FIRST_PAGE);
+        this.setIntValue(-1, LAST_PAGE);
+        this.setIntValue(-1, DIR_PAGE);
+        this.setIntValue(-1, NEXT_EXTENT_PAGE);
+        this.setIntValue(-1, EXTENT_END);
+    }
+
+    public boolean isHeader() {
+        return this.getIntValue(MAGIC) == HEADER_MAGIC;
+    }
+
+    public PageId getFirstPage() {
+        return new PageId(this.getIntValue(FIRST_PAGE));
+    }
+
+    public void setFirstPage(PageId pageno) {
+        this.setIntValue(pageno.pid, FIRST_PAGE);
+    }
+
+    public PageId getLastPage() {
+        return new PageId(this.getIntValue(LAST_PAGE));
+    }
+
+    public void setLastPage(PageId pageno) {
+        this.setIntValue(pageno.pid, LAST_PAGE);
+    }
+
+    public int getDirPage() {
+        return this.getIntValue(DIR_PAGE);
+    }
+
+    public void setDirPage(int pid) {
+        this.setIntValue(pid, DIR_PAGE);
+    }
+
+    public int getNextExtentPage() {
+        return this.getIntValue(NEXT_EXTENT_PAGE);
+    }
+
+    public void setNextExtentPage(int pid) {
+        this.setIntValue(pid, NEXT_EXTENT_PAGE);
+    }
+
+    public int getExtentEnd() {
+        return this.getIntValue(EXTENT_END);
+    }
+
+    public void setExtentEnd(int pid) {
+        this.setIntValue(pid, EXTENT_END);
+    }
+}
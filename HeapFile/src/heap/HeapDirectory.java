@@ -0,0 +1,272 @@
+package heap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * The directory of a heap file: an entry for every data page, with its free
+ * space and record count, kept on a chain of DirPages and read through the
+ * buffer manager.  Opening a file reads only the directory pages, and a copy
+ * of the entries is kept in memory, so that counting records or listing the
+ * data pages reads no page at all.
+ *
+ * Every page with room is also filed in a bucket for its category of free
+ * space, so that finding a page for a record takes a look at a bitmap of
+ * non-empty buckets and one bucket, however large the file.  Categories
+ * round free space down, so a page found for a record always has room for
+ * it.  The page found is the one with the least room that is still enough,
+ * lowest page first, which keeps pages full.
+ */
+class HeapDirectory implements GlobalConst {
+
+  /** bytes of free space one category stands for */
+  protected static final int CATEGORY_BYTES = 4;
+
+  /** number of categories */
+  protected static final int NUM_CATEGORIES = 256;
+
+  private BufMgr bufMgr;
+  private DiskMgr diskMgr;
+
+  /** directory pages in chain order */
+  private ArrayList<Integer> dirPages = new ArrayList<>();
+
+  /** the entries, in directory order; entry n is on dirPages[n / CAPACITY] */
+  private int[] pids = new int[64];
+  private short[] freeSpace = new short[64];
+  private short[] recCnts = new short[64];
+  private int entryCount = 0;
+
+  /** data page -> entry number */
+  private HashMap<Integer, Integer> entryOf = new HashMap<>();
+
+  private int recCnt = 0;
+
+  /** pages with room, by category; category 0 is not kept */
+  private ArrayList<TreeSet<Integer>> buckets = new ArrayList<>();
+
+  /** bit c set when buckets[c] is not empty */
+  private long[] nonEmpty = new long[NUM_CATEGORIES / 64];
+
+  public HeapDirectory(BufMgr bufMgr, DiskMgr diskMgr) {
+    this.bufMgr = bufMgr;
+    this.diskMgr = diskMgr;
+    for (int c = 0; c < NUM_CATEGORIES; c++) {
+      buckets.add(new TreeSet<Integer>());
+    }
+  }
+
+  /**
+   * Returns the category of a page with the given free space.
+   */
+  protected static int category(int freeBytes) {
+    return Math.min(NUM_CATEGORIES - 1, Math.max(0, freeBytes) / CATEGORY_BYTES);
+  }
+
+  /**
+   * Reads the chain of directory pages starting at the given page.
+   */
+  public void load(int firstDirPage) {
+    clear();
+    Page page = new Page();
+    for (int pid = firstDirPage; pid != INVALID_PAGEID; ) {
+      PageId dirPageId = new PageId(pid);
+      bufMgr.pinPage(dirPageId, page, PIN_DISKIO);
+      DirPage dirPage = new DirPage(page);
+      dirPages.add(pid);
+      for (int i = 0; i < dirPage.getEntryCount(); i++) {
+        append(dirPage.getPageId(i), dirPage.getFreeSpace(i), dirPage.getRecCnt(i));
+      }
+      pid = dirPage.getNextPage();
+      bufMgr.unpinPage(dirPageId, UNPIN_CLEAN);
+    }
+  }
+
+  /**
+   * Adds an entry for a new data page, with no records on it.
+   */
+  public void add(PageId pageno, int freeBytes) {
+    add(pageno, freeBytes, 0);
+  }
+
+  /**
+   * Adds an entry for a new data page, adding a directory page to the chain
+   * when the last one is full.
+   */
+  public void add(PageId pageno, int freeBytes, int pageRecCnt) {
+    int n = entryCount;
+    Page page = new Page();
+    if (n == dirPages.size() * DirPage.CAPACITY) {
+      PageId dirPageId = diskMgr.allocate_page();
+      bufMgr.pinPage(dirPageId, page, PIN_MEMCPY);
+      new DirPage(page).initDefaults();
+      bufMgr.unpinPage(dirPageId, UNPIN_DIRTY);
+
+      if (!dirPages.isEmpty()) {
+        PageId tail = new PageId(dirPages.get(dirPages.size() - 1));
+        bufMgr.pinPage(tail, page, PIN_DISKIO);
+        new DirPage(page).setNextPage(dirPageId.pid);
+        bufMgr.unpinPage(tail, UNPIN_DIRTY);
+      }
+      dirPages.add(dirPageId.pid);
+    }
+
+    append(pageno.pid, freeBytes, pageRecCnt);
+
+    PageId dirPageId = new PageId(dirPages.get(n / DirPage.CAPACITY));
+    bufMgr.pinPage(dirPageId, page, PIN_DISKIO);
+    DirPage dirPage = new DirPage(page);
+    dirPage.setEntry(n % DirPage.CAPACITY, pageno.pid, freeBytes, pageRecCnt);
+    dirPage.setEntryCount(n % DirPage.CAPACITY + 1);
+    bufMgr.unpinPage(dirPageId, UNPIN_DIRTY);
+  }
+
+  /**
+   * Records the free space of a data page, and the records added to it
+   * (or removed from it, if negative).
+   */
+  public void update(PageId pageno, int freeBytes, int recDelta) {
+    Integer n = entryOf.get(pageno.pid);
+    if (n == null) {
+      throw new IllegalArgumentException("Page " + pageno.pid + " is not in the file");
+    }
+    int old = category(freeSpace[n]);
+    int cat = category(freeBytes);
+    if (cat != old) {
+      unfile(pageno.pid, old);
+      file(pageno.pid, cat);
+    }
+    freeSpace[n] = (short) freeBytes;
+    recCnts[n] += recDelta;
+    recCnt += recDelta;
+
+    Page page = new Page();
+    PageId dirPageId = new PageId(dirPages.get(n / DirPage.CAPACITY));
+    bufMgr.pinPage(dirPageId, page, PIN_DISKIO);
+    new DirPage(page).setEntry(n % DirPage.CAPACITY, pageno.pid, freeBytes, recCnts[n]);
+    bufMgr.unpinPage(dirPageId, UNPIN_DIRTY);
+  }
+
+  /**
+   * Finds a data page with at least the given free space.
+   *
+   * @return the page, or null if none has room
+   */
+  public PageId find(int needBytes) {
+    int need = Math.max(1, (needBytes + CATEGORY_BYTES - 1) / CATEGORY_BYTES);
+    for (int w = need / 64; w < nonEmpty.length; w++) {
+      long bits = nonEmpty[w];
+      if (w == need / 64) {
+        bits &= -1L << (need % 64);
+      }
+      if (bits != 0) {
+        int c = w * 64 + Long.numberOfTrailingZeros(bits);
+        return new PageId(buckets.get(c).first());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the number of records in the file.
+   */
+  public int getRecCnt() {
+    return recCnt;
+  }
+
+  /**
+   * Returns the number of records on a data page.
+   */
+  public int getRecCnt(PageId pageno) {
+    Integer n = entryOf.get(pageno.pid);
+    return (n == null) ? 0 : recCnts[n];
+  }
+
+  /**
+   * Returns the data pages, in the order they were added to the file.
+   */
+  public List<PageId> getDataPages() {
+    List<PageId> pages = new ArrayList<>(entryCount);
+    for (int n = 0; n < entryCount; n++) {
+      pages.add(new PageId(pids[n]));
+    }
+    return pages;
+  }
+
+  /**
+   * Returns the ids of the data pages in ascending order, which is the
+   * order they sit in on disk.
+   */
+  public int[] getPhysicalOrder() {
+    int[] order = Arrays.copyOf(pids, entryCount);
+    Arrays.sort(order);
+    return order;
+  }
+
+  /**
+   * Returns the first page of the directory's chain, or INVALID_PAGEID.
+   */
+  public int getFirstDirPage() {
+    return dirPages.isEmpty() ? INVALID_PAGEID : dirPages.get(0);
+  }
+
+  /**
+   * Returns the directory pages themselves.
+   */
+  public List<PageId> getDirPages() {
+    List<PageId> pages = new ArrayList<>();
+    for (int pid : dirPages) {
+      pages.add(new PageId(pid));
+    }
+    return pages;
+  }
+
+  /**
+   * Forgets all directory pages, without freeing them.
+   */
+  public void clear() {
+    dirPages.clear();
+    entryCount = 0;
+    entryOf.clear();
+    recCnt = 0;
+    for (TreeSet<Integer> bucket : buckets) {
+      bucket.clear();
+    }
+    Arrays.fill(nonEmpty, 0);
+  }
+
+  private void append(int pid, int freeBytes, int pageRecCnt) {
+    if (entryCount == pids.length) {
+      pids = Arrays.copyOf(pids, entryCount * 2);
+      freeSpace = Arrays.copyOf(freeSpace, entryCount * 2);
+      recCnts = Arrays.copyOf(recCnts, entryCount * 2);
+    }
+    pids[entryCount] = pid;
+    freeSpace[entryCount] = (short) freeBytes;
+    recCnts[entryCount] = (short) pageRecCnt;
+    entryOf.put(pid, entryCount);
+    entryCount++;
+    recCnt += pageRecCnt;
+    file(pid, category(freeBytes));
+  }
+
+  private void file(int pid, int category) {
+    if (category > 0 && buckets.get(category).add(pid)) {
+      nonEmpty[category / 64] |= 1L << (category % 64);
+    }
+  }
+
+  private void unfile(int pid, int category) {
+    TreeSet<Integer> bucket = buckets.get(category);
+    if (category > 0 && bucket.remove(pid) && bucket.isEmpty()) {
+      nonEmpty[category / 64] &= ~(1L << (category % 64));
+    }
+  }
+}
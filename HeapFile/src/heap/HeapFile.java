@@ -1,6 +1,10 @@
 package heap;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import bufmgr.*;
 import chainexception.ChainException;
@@ -19,13 +23,25 @@ import global.*;
  */
 public class HeapFile implements GlobalConst {
 
+    /** Size of the first extent reserved for a file, in pages. */
+    protected static final int FIRST_EXTENT_SIZE = 8;
+
+    /** Extents grow with the file, up to this many pages. */
+    protected static final int MAX_EXTENT_SIZE = 1024;
+
     public String fileName;
     public BufMgr bufMgr;
     public DiskMgr diskMgr;
-    public HashMap<PageId, Integer> freeSpaceMap; 
-    private int recordCount = 0;
+    HeapDirectory directory;
     public PageId headerPageId;
+    public PageId firstPageId;
     public PageId lastPageId;
+    public LinkedHashMap<PageId, Integer> extents;
+    private int nextExtentPage = INVALID_PAGEID;
+    private int extentEnd = INVALID_PAGEID;
+
+    /** pinned by getRecord(RID, TupleView), so it allocates no Page */
+    private Page viewPage = new Page();
 
   /**
    * If the given name already denotes a file, this opens it; otherwise, this
@@ -37,22 +53,89 @@ public class HeapFile implements GlobalConst {
     this.fileName = name;
     this.bufMgr = Minibase.BufferManager;
     this.diskMgr = Minibase.DiskManager;
-    this.freeSpaceMap = new HashMap<>();
+    this.directory = new HeapDirectory(bufMgr, diskMgr);
+    this.extents = new LinkedHashMap<>();
     this.headerPageId = null;
-    PageId existingId = diskMgr.get_file_entry(name);
+    this.firstPageId = new PageId(INVALID_PAGEID);
+    this.lastPageId = new PageId(INVALID_PAGEID);
+    PageId existingId = (name == null) ? null : diskMgr.get_file_entry(name);
     System.err.println("Existing ID: " + existingId);
     if (existingId != null) {
-        this.headerPageId = existingId;    
+        this.headerPageId = existingId;
+        loadHeader();
     }
     else {
-        PageId firstDataPageId = diskMgr.allocate_page(); 
-        this.headerPageId = firstDataPageId;
-        this.lastPageId = firstDataPageId;
-        diskMgr.add_file_entry(name, headerPageId);
+        this.headerPageId = diskMgr.allocate_page();
+        Page page = new Page();
+        bufMgr.pinPage(headerPageId, page, PIN_MEMCPY);
+        new HFHeaderPage(page).initDefaults();
+        bufMgr.unpinPage(headerPageId, UNPIN_DIRTY);
+        if (name != null) {
+            diskMgr.add_file_entry(name, headerPageId);
+        }
         System.err.println("Created new file with header page " + headerPageId.pid);
 }
 }
 
+  /**
+   * Reads the header page of an existing file, and its directory.
+   */
+  private void loadHeader() {
+    Page page = new Page();
+    bufMgr.pinPage(headerPageId, page, PIN_DISKIO);
+    HFHeaderPage header = new HFHeaderPage(page);
+    if (!header.isHeader()) {
+      bufMgr.unpinPage(headerPageId, UNPIN_CLEAN);
+      throw new IllegalStateException(fileName + " is not a heap file");
+    }
+    firstPageId = header.getFirstPage();
+    lastPageId = header.getLastPage();
+    nextExtentPage = header.getNextExtentPage();
+    extentEnd = header.getExtentEnd();
+    int firstDirPage = header.getDirPage();
+    bufMgr.unpinPage(headerPageId, UNPIN_CLEAN);
+
+    directory.load(firstDirPage);
+    extents = new LinkedHashMap<>();
+    PageId last = null;
+    for (PageId pid : directory.getDataPages()) {
+      last = addToExtents(last, pid.pid, 1);
+    }
+    //the unused rest of the newest extent belongs to the file too
+    if (nextExtentPage != INVALID_PAGEID && nextExtentPage < extentEnd) {
+      addToExtents(last, nextExtentPage, extentEnd - nextExtentPage);
+    }
+  }
+
+  /**
+   * Adds a run of pages to the extents, merging it into the last run if it
+   * follows it on disk, and returns the run it ended up in.
+   */
+  private PageId addToExtents(PageId last, int start, int count) {
+    if (last != null && last.pid + extents.get(last) == start) {
+      extents.put(last, extents.get(last) + count);
+      return last;
+    }
+    PageId run = new PageId(start);
+    extents.put(run, count);
+    return run;
+  }
+
+  /**
+   * Writes what the file keeps in memory back to its header page.
+   */
+  private void saveHeader() {
+    Page page = new Page();
+    bufMgr.pinPage(headerPageId, page, PIN_DISKIO);
+    HFHeaderPage header = new HFHeaderPage(page);
+    header.setFirstPage(firstPageId);
+    header.setLastPage(lastPageId);
+    header.setNextExtentPage(nextExtentPage);
+    header.setExtentEnd(extentEnd);
+    header.setDirPage(directory.getFirstDirPage());
+    bufMgr.unpinPage(headerPageId, UNPIN_DIRTY);
+  }
+
   /**
    * Called by the garbage collector when there are no more references to the
    * object; deletes the heap file if it's temporary.
@@ -72,15 +155,33 @@ public class HeapFile implements GlobalConst {
       */
      public void deleteFile() throws DiskMgrException {
     //PUT YOUR CODE HERE
-      for (PageId pid : freeSpaceMap.keySet()) {
-        try {
-          diskMgr.deallocate_page(pid);
-        } catch (Exception e) {
-          throw new DiskMgrException(null, "deleteFile() failed, DiskMgr exception");
+      //every data page lives in one of the file's extents; each extent's
+      //frames are dropped first, so that nothing stale is left in the pool
+      //for pages written straight to disk later, then it is freed whole
+      try {
+        for (Map.Entry<PageId, Integer> extent : extents.entrySet()) {
+          PoolPages.discard(bufMgr, extent.getKey().pid, extent.getValue());
+          diskMgr.deallocate_page(new PageId(extent.getKey().pid), extent.getValue());
+        }
+        for (PageId dirPage : directory.getDirPages()) {
+          bufMgr.freePage(dirPage);
         }
+        if (headerPageId != null) {
+          bufMgr.freePage(headerPageId);
+          if (fileName != null) {
+            diskMgr.delete_file_entry(fileName);
+          }
+        }
+      } catch (Exception e) {
+        throw new DiskMgrException(null, "deleteFile() failed, DiskMgr exception");
       }
-      freeSpaceMap.clear();
-      recordCount = 0;
+      extents.clear();
+      nextExtentPage = INVALID_PAGEID;
+      extentEnd = INVALID_PAGEID;
+      directory.clear();
+      headerPageId = null;
+      firstPageId = new PageId(INVALID_PAGEID);
+      lastPageId = new PageId(INVALID_PAGEID);
     }
 
   /**
@@ -89,13 +190,11 @@ public class HeapFile implements GlobalConst {
          * @throws BufferPoolExceededException 
             * @throws PageUnpinnedException 
                      * 
-                     * @throws IllegalArgumentException if the record is too large
+                     * @throws SpaceNotAvailableException if the record is too large
                      */
-  public RID insertRecord(byte[] record) throws DiskMgrException, BufferPoolExceededException, PageUnpinnedException {
+  public RID insertRecord(byte[] record) throws DiskMgrException, BufferPoolExceededException, PageUnpinnedException, SpaceNotAvailableException {
     //PUT YOUR CODE HERE
-    if (record.length > PAGE_SIZE) {
-      throw new IllegalArgumentException("Record size exceeds page size");
-    }
+    checkRecordSize(record.length);
   //System.err.println("Inserting record of size " + record.length);
   PageId targetPage = findPageForRecord(record.length);
   Page page = new Page();
@@ -109,13 +208,145 @@ public class HeapFile implements GlobalConst {
     throw new IllegalArgumentException("Not enough space to insert record");
   }
   
-  freeSpaceMap.put(targetPage, (int) hfPage.getFreeSpace());
-  recordCount++;
+  directory.update(targetPage, hfPage.getFreeSpace(), 1);
   bufMgr.unpinPage(targetPage, true);
   //System.err.println("Inserted record into page " + targetPage.pid + " at slot " + rid.slotno);
   return rid;
 }
 
+  /**
+   * Inserts many records into the file.  Each page found is filled with as
+   * many of the records as fit while it is pinned, and its directory entry
+   * is updated once.
+   *
+   * @param rids an array to reuse for the RIDs, or null
+   * @return the RIDs of the records, in order: rids itself if it was long
+   * enough, else a new array
+   * @throws SpaceNotAvailableException if a record is too large; no record
+   * has been inserted then
+   */
+  public RID[] insertRecords(byte[][] records, RID[] rids) throws DiskMgrException, SpaceNotAvailableException {
+    for (byte[] record : records) {
+      checkRecordSize(record.length);
+    }
+    if (rids == null || rids.length < records.length) {
+      rids = new RID[records.length];
+    }
+
+    Page page = new Page();
+    int i = 0;
+    boolean refused = false;
+    while (i < records.length) {
+      //a page the directory offered that took nothing goes unused; the
+      //record goes on a new page, so the loop always gets further
+      PageId targetPage = refused ? addDataPage() : findPageForRecord(records[i].length);
+      bufMgr.pinPage(targetPage, page, false);
+      HFPage hfPage = new HFPage(page);
+      int added = 0;
+      RID rid;
+      while (i < records.length && (rid = hfPage.insertRecord(records[i])) != null) {
+        rids[i] = setRid(rids[i], targetPage, rid.slotno);
+        i++;
+        added++;
+      }
+      directory.update(targetPage, hfPage.getFreeSpace(), added);
+      bufMgr.unpinPage(targetPage, added > 0);
+      refused = checkProgress(added, refused);
+    }
+    return rids;
+  }
+
+  /**
+   * Inserts many records into the file, as insertRecords(byte[][], RID[])
+   * does.  A record is the remaining bytes of a buffer; the buffer's
+   * position is left alone.
+   *
+   * @param rids an array to reuse for the RIDs, or null
+   * @return the RIDs of the records, in order: rids itself if it had just
+   * one entry per record, else a new array of exactly that length
+   * @throws SpaceNotAvailableException if a record is too large; the records
+   * before it have been inserted then
+   */
+  public RID[] insertRecords(Iterable<ByteBuffer> records, RID[] rids) throws DiskMgrException, SpaceNotAvailableException {
+    if (rids == null) {
+      rids = new RID[16];
+    }
+
+    Page page = new Page();
+    Iterator<ByteBuffer> it = records.iterator();
+    ByteBuffer next = it.hasNext() ? it.next() : null;
+    int i = 0;
+    boolean refused = false;
+    while (next != null) {
+      checkRecordSize(next.remaining());
+      PageId targetPage = refused ? addDataPage() : findPageForRecord(next.remaining());
+      bufMgr.pinPage(targetPage, page, false);
+      HFPage hfPage = new HFPage(page);
+      int added = 0;
+      while (next != null) {
+        int length = next.remaining();
+        if (length + HFPage.SLOT_SIZE > MAX_TUPSIZE) {
+          break;  //thrown above, once this page is unpinned
+        }
+        //a buffer wrapping exactly one record is inserted as it is
+        byte[] record;
+        if (next.hasArray() && next.arrayOffset() + next.position() == 0
+            && length == next.array().length) {
+          record = next.array();
+        } else {
+          record = new byte[length];
+          next.duplicate().get(record);
+        }
+        RID rid = hfPage.insertRecord(record);
+        if (rid == null) {
+          break;
+        }
+        if (i == rids.length) {
+          rids = Arrays.copyOf(rids, i * 2);
+        }
+        rids[i] = setRid(rids[i], targetPage, rid.slotno);
+        i++;
+        added++;
+        next = it.hasNext() ? it.next() : null;
+      }
+      directory.update(targetPage, hfPage.getFreeSpace(), added);
+      bufMgr.unpinPage(targetPage, added > 0);
+      refused = checkProgress(added, refused);
+    }
+    return (i == rids.length) ? rids : Arrays.copyOf(rids, i);
+  }
+
+  /**
+   * Tells whether a batch insert must put its next record on a new page,
+   * because the page just filled took none.  The directory entry of that
+   * page has been set to its real free space, so it is not offered for the
+   * record again.
+   *
+   * @throws IllegalStateException if even a new page took nothing
+   */
+  private static boolean checkProgress(int added, boolean refused) {
+    if (added == 0 && refused) {
+      throw new IllegalStateException("Record does not fit on an empty page");
+    }
+    return added == 0;
+  }
+
+  private void checkRecordSize(int length) throws SpaceNotAvailableException {
+    if (length + HFPage.SLOT_SIZE > MAX_TUPSIZE) {
+      throw new SpaceNotAvailableException("Record size exceeds page size");
+    }
+  }
+
+  /** Fills in a RID to reuse, or makes a new one if there is none. */
+  private static RID setRid(RID rid, PageId pageno, int slotno) {
+    if (rid == null || rid.pageno == null) {
+      return new RID(new PageId(pageno.pid), slotno);
+    }
+    rid.pageno.pid = pageno.pid;
+    rid.slotno = slotno;
+    return rid;
+  }
+
   /**
    * Reads a record from the file, given its id.
       * @throws BufferPoolExceededException 
@@ -134,17 +365,41 @@ public class HeapFile implements GlobalConst {
     return tuple;
   }
 
+  /**
+   * Reads a record from the file into a view, given its id.  The record is
+   * copied into the view's own buffer, which is reused from one call to the
+   * next, and the page is pinned into a Page the file keeps, so no memory is
+   * allocated once the buffer is large enough.
+   *
+   * @return the view
+   * @throws IllegalArgumentException if the rid is invalid
+   */
+  public TupleView getRecord(RID rid, TupleView view) {
+    bufMgr.pinPage(rid.pageno, viewPage, false);
+    byte[] data = viewPage.getData();
+    int slotCnt = Convert.getShortValue(HFPage.SLOT_CNT, data);
+    int pos = HFPage.HEADER_SIZE + rid.slotno * HFPage.SLOT_SIZE;
+    int length = (rid.slotno >= 0 && rid.slotno < slotCnt) ? Convert.getShortValue(pos, data) : -1;
+    if (length == -1) {
+      bufMgr.unpinPage(rid.pageno, false);
+      throw new IllegalArgumentException("Invalid RID");
+    }
+    view.copy(data, Convert.getShortValue(pos + 2, data), length, rid.pageno.pid, rid.slotno);
+    bufMgr.unpinPage(rid.pageno, false);
+    return view;
+  }
+
   /**
    * Updates the specified record in the heap file.
       * @throws BufferPoolExceededException 
          * @throws PageUnpinnedException 
-            * @throws InvalidUpdateException 
-                     * 
-                     * @throws IllegalArgumentException if the rid or new record is invalid
+            * @throws InvalidUpdateException if the new record is not the
+            * same size as the old one
                      */
   public boolean updateRecord(RID rid, Tuple newTuple) throws ChainException{
     //PUT YOUR CODE HERE
     byte[] newRecord = newTuple.getTupleByteArray();
+    int newLength = newTuple.getLength();
 
     Page page = new Page();
     bufMgr.pinPage(rid.pageno, page, false);
@@ -152,16 +407,12 @@ public class HeapFile implements GlobalConst {
 
     // Check length match
     short oldLength = hfPage.getSlotLength(rid.slotno);
-    try {
-      if (oldLength != (short)newRecord.length) {
-        throw new InvalidUpdateException(null, "Invalid record size");
-      }
-    } catch (InvalidUpdateException e) {
-      return false;
+    if (oldLength != newLength) {
+      bufMgr.unpinPage(rid.pageno, false);
+      throw new InvalidUpdateException();
     }
-    
 
-    Tuple update = new Tuple(newRecord, 0, newRecord.length);
+    Tuple update = new Tuple(newRecord, 0, newLength);
     hfPage.updateRecord(rid, update);
 
     bufMgr.unpinPage(rid.pageno, true);
@@ -188,9 +439,8 @@ public class HeapFile implements GlobalConst {
         bufMgr.unpinPage(rid.pageno, false);
         return false;
     }
-    // Update free space map and record count
-    freeSpaceMap.put(rid.pageno, (int)hfPage.getFreeSpace());
-    recordCount--;
+    // Update free space and record count in the directory
+    directory.update(rid.pageno, hfPage.getFreeSpace(), -1);
     bufMgr.unpinPage(rid.pageno, true);
     return true;
 
@@ -203,7 +453,41 @@ public class HeapFile implements GlobalConst {
             */
   public int getRecCnt() throws BufferPoolExceededException, PageUnpinnedException {
     //PUT YOUR CODE HERE
-    return recordCount;
+    return directory.getRecCnt();
+  }
+
+  /**
+   * Walks the chain of data pages from the first, checking that each page
+   * links back to the page before it, and counts the records on the chain.
+   *
+   * @return the number of records on the pages of the chain
+   * @throws IllegalStateException if a page links back to the wrong page
+   */
+  public int checkPageChain() {
+    int count = 0;
+    PageId prev = new PageId(INVALID_PAGEID);
+    PageId pid = new PageId(firstPageId.pid);
+    Page page = new Page();
+    while (pid.pid != INVALID_PAGEID) {
+      bufMgr.pinPage(pid, page, PIN_DISKIO);
+      HFPage hfPage = new HFPage(page);
+      int back = hfPage.getPrevPage().pid;
+      if (back != prev.pid) {
+        bufMgr.unpinPage(pid, UNPIN_CLEAN);
+        throw new IllegalStateException("Page " + pid.pid + " links back to page "
+                                        + back + ", not " + prev.pid);
+      }
+      for (int slot = 0; slot < hfPage.getSlotCount(); slot++) {
+        if (hfPage.getSlotLength(slot) != -1) {
+          count++;
+        }
+      }
+      PageId next = hfPage.getNextPage();
+      bufMgr.unpinPage(pid, UNPIN_CLEAN);
+      prev = pid;
+      pid = next;
+    }
+    return count;
   }
 
   /**
@@ -215,6 +499,31 @@ public class HeapFile implements GlobalConst {
     return new HeapScan(this);
   }
 
+  /**
+   * Initiates a sequential scan of the records satisfying a predicate.  The
+   * predicate is tested on each record in its page, and only the records
+   * that satisfy it are copied out.
+      * @throws PageUnpinnedException 
+      * @throws BufferPoolExceededException 
+      */
+  public HeapScan openScan(Predicate predicate) throws BufferPoolExceededException, PageUnpinnedException {
+    return new HeapScan(this, predicate);
+  }
+
+  /**
+   * Initiates a scan of the heap file by a thread for every processor.
+   */
+  public ParallelHeapScan openParallelScan() {
+    return openParallelScan(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Initiates a scan of the heap file by the given number of threads.
+   */
+  public ParallelHeapScan openParallelScan(int parallelism) {
+    return new ParallelHeapScan(this, parallelism);
+  }
+
   /**
    * Returns the name of the heap file.
    */
@@ -226,21 +535,20 @@ public class HeapFile implements GlobalConst {
 
   private PageId findPageForRecord(int recordSize) throws DiskMgrException {
     //System.err.println("Finding page for record of size " + recordSize);
-    //System.err.println("Free space map: " + freeSpaceMap);
-    for (PageId pid : freeSpaceMap.keySet()) {
-      //System.err.println("Checking page " + pid.pid + " with " + freeSpaceMap.get(pid) + " free bytes");
-        if (freeSpaceMap.get(pid) >= recordSize + 4) {
-            return pid;
-        }
+    PageId pid = directory.find(recordSize + HFPage.SLOT_SIZE);
+    if (pid != null) {
+        return pid;
     }
     // If no existing page has enough space, allocate a new one
+    return addDataPage();
+  }
+
+  /**
+   * Adds an empty data page to the end of the file and to its directory.
+   */
+  private PageId addDataPage() throws DiskMgrException {
     //System.err.println(diskMgr);
-    PageId newPageId;
-    try {
-      newPageId = diskMgr.allocate_page(1);
-    } catch (Exception e) {
-        throw new DiskMgrException(e, "findPageForRecord() failed");
-    }
+    PageId newPageId = allocateDataPage();
 
     // Initialize the new page as an HFPage
     Page newPage = new Page();
@@ -252,8 +560,8 @@ public class HeapFile implements GlobalConst {
         hfPage.setCurPage(newPageId);
         hfPage.setNextPage(new PageId(-1));
         hfPage.setPrevPage(new PageId(-1));
-        if (this.lastPageId == null) {
-            this.headerPageId = newPageId;
+        if (this.lastPageId.pid == INVALID_PAGEID) {
+            this.firstPageId = newPageId;
             this.lastPageId = newPageId;
         } else {
             Page curLastPage = new Page();
@@ -267,9 +575,10 @@ public class HeapFile implements GlobalConst {
             this.lastPageId = newPageId;
         }
        
-        // Update freeSpaceMap
-        freeSpaceMap.put(newPageId, (int)hfPage.getFreeSpace());
+        // Enter the page in the directory
+        directory.add(newPageId, hfPage.getFreeSpace());
         bufMgr.unpinPage(newPageId, true);
+        saveHeader();
         //System.err.println("Allocated new page " + newPageId.pid+" for record" + recordSize);
     } catch (Exception e) {
         throw new DiskMgrException(e, "Error initializing new HFPage");
@@ -278,4 +587,66 @@ public class HeapFile implements GlobalConst {
     return newPageId;
 
   }
+
+  /**
+   * Links pages written outside the buffer pool, already chained to each
+   * other, onto the end of the file, and enters them in the directory.  The
+   * first of them is linked back to whatever page is last now.  Used by
+   * BulkLoader.
+   *
+   * @param runs the runs of pages they were allocated in, first page -> length
+   */
+  void appendPages(int[] pids, int[] freeSpace, int[] recCnts, int count,
+                   Map<PageId, Integer> runs) {
+    PageId first = new PageId(pids[0]);
+    Page page = new Page();
+    bufMgr.pinPage(first, page, false);
+    new HFPage(page).setPrevPage(new PageId(lastPageId.pid));
+    bufMgr.unpinPage(first, true);
+    if (lastPageId.pid == INVALID_PAGEID) {
+      firstPageId = first;
+    } else {
+      bufMgr.pinPage(lastPageId, page, false);
+      new HFPage(page).setNextPage(first);
+      bufMgr.unpinPage(lastPageId, true);
+    }
+    lastPageId = new PageId(pids[count - 1]);
+    for (int i = 0; i < count; i++) {
+      directory.add(new PageId(pids[i]), freeSpace[i], recCnts[i]);
+    }
+    extents.putAll(runs);
+    saveHeader();
+  }
+
+  /**
+   * Hands out the next unused page of the file's current extent. When the
+   * extent is used up a new one is reserved, as large as the whole file so
+   * far, so that the pages of a file stay physically together on disk.
+   */
+  private PageId allocateDataPage() throws DiskMgrException {
+    if (nextExtentPage == INVALID_PAGEID || nextExtentPage >= extentEnd) {
+      int size = 0;
+      for (int extentSize : extents.values()) {
+        size += extentSize;
+      }
+      size = Math.max(FIRST_EXTENT_SIZE, Math.min(size, MAX_EXTENT_SIZE));
+
+      //settle for a shorter run if the disk is too fragmented for this one
+      PageId start = null;
+      while (start == null) {
+        try {
+          start = diskMgr.allocate_page(size);
+        } catch (Exception e) {
+          if (size == 1) {
+            throw new DiskMgrException(e, "findPageForRecord() failed");
+          }
+          size /= 2;
+        }
+      }
+      extents.put(start, size);
+      nextExtentPage = start.pid;
+      extentEnd = start.pid + size;
+    }
+    return new PageId(nextExtentPage++);
+  }
 } // public class HeapFile implements GlobalConst
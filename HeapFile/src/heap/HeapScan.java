@@ -1,8 +1,12 @@
 package heap;
 
-import java.util.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import bufmgr.*;
+import diskmgr.PageRuns;
 import global.* ;
 import chainexception.ChainException;
 
@@ -10,29 +14,82 @@ import chainexception.ChainException;
  * A HeapScan object is created only through the function openScan() in the
  * HeapFile class. It supports the getNext interface which will simply retrieve
  * the next record in the file.
+ *
+ * Pages are visited in ascending page order, the order they sit in on disk,
+ * as listed by the file's directory, rather than in the order of the page
+ * chain.  While the scan works through one window of READ_AHEAD pages, a
+ * background thread reads the next window straight from the disk
+ * manager's file, each run of adjacent pages in one read, so that by the time the
+ * scan pins those pages the operating system has them cached.  The buffer
+ * pool is not touched from that thread, as the buffer manager is not
+ * thread-safe.
+ *
+ * The scan keeps its place as plain ints and reads the slot directory of
+ * the pinned page itself.  getNextView() hands out a view of each record in
+ * the pinned frame, so that a scan in that mode allocates nothing per
+ * record; getNext() copies each record into a tuple of its own, and
+ * nextBatch() copies many at a time into a RecordBatch.
+ *
+ * A scan opened with a Predicate tests each record in the pinned page and
+ * passes over those that fail it, so only matching records are copied or
+ * handed out.
  */
 public class HeapScan implements GlobalConst {
+
+    /** Pages read ahead of the scan at a time. */
+    protected static final int READ_AHEAD = 32;
+
+    /** reads ahead for all scans, one run after another */
+    private static final ExecutorService readAheadThread =
+        Executors.newSingleThreadExecutor(r -> {
+          Thread t = new Thread(r, "HeapScan read-ahead");
+          t.setDaemon(true);
+          return t;
+        });
+
    private HeapFile heapFile;
     private BufMgr bufMgr;
+    private volatile boolean isScanOpen;
+    private int[] pageOrder;
+    private int pageIndex;
+
+    /** pages of pageOrder before this index have been read ahead */
+    private int readAheadEnd;
+
+    /** the pinned page, or null; its bytes; its slot count; the next slot */
     private PageId currentPageId;
-    private HFPage currentPage;
-    private RID currentRid;
-    private boolean isScanOpen;
+    private Page currentPage = new Page();
+    private byte[] pageData;
+    private int slotCnt;
+    private int nextSlot;
+
+    private TupleView view = new TupleView();
+
+    /** records must satisfy this to be returned, unless it is null */
+    private Predicate predicate;
 
   /**
-   * Constructs a file scan by pinning the directoy header page and initializing
-   * iterator fields.
+   * Constructs a file scan by pinning the first page with a record and
+   * initializing iterator fields.
       * @throws PageUnpinnedException 
       * @throws BufferPoolExceededException 
       */
   protected HeapScan(HeapFile hf) throws BufferPoolExceededException, PageUnpinnedException {
+    this(hf, null);
+  }
+
+  /**
+   * Constructs a file scan returning only the records that satisfy the
+   * given predicate, or all of them if it is null.
+      * @throws PageUnpinnedException 
+      * @throws BufferPoolExceededException 
+      */
+  protected HeapScan(HeapFile hf, Predicate predicate) throws BufferPoolExceededException, PageUnpinnedException {
     //PUT YOUR CODE HERE
     this.heapFile = hf;
+    this.predicate = predicate;
     this.bufMgr = hf.bufMgr;
-    //prob need to conditionally set this as null if headerPageId is null
-    this.currentPageId = hf.headerPageId;
-    this.currentPage = null;
-    this.currentRid = null;
+    this.currentPageId = null;
     this.isScanOpen = true;
     
     moveToFirstRecord();
@@ -42,26 +99,54 @@ public class HeapScan implements GlobalConst {
   private void moveToFirstRecord() throws BufferPoolExceededException, PageUnpinnedException {
     System.err.println("Moving to first record"
     );
-    for (PageId pid : heapFile.freeSpaceMap.keySet()) {
-        Page page = new Page();
-        bufMgr.pinPage(pid, page, false);
-        HFPage currPage = new HFPage(page);
-        RID rid  = currPage.firstRecord();
-        if (rid != null) {
-          this.currentPage = currPage;
-          this.currentPageId = pid;
-          this.currentRid = rid;
-          
-          return;
-        }
-        bufMgr.unpinPage(pid, false);
+    this.pageOrder = heapFile.directory.getPhysicalOrder();
+    this.pageIndex = -1;
+    this.readAheadEnd = 0;
+    if (!moveToRecord()) {
+      System.err.println("No first records found");
     }
-    System.err.println("No first records found");
-    this.currentPage = null;
-    this.currentPageId = null;
-    this.currentRid = null;
 }
 
+  /**
+   * Tells whether a slot of the pinned page holds a record the scan returns.
+   */
+  private boolean isMatch(int slot) {
+    int pos = HFPage.HEADER_SIZE + slot * HFPage.SLOT_SIZE;
+    int length = Convert.getShortValue(pos, pageData);
+    return length != -1
+        && (predicate == null
+            || predicate.matches(pageData, Convert.getShortValue(pos + 2, pageData), length));
+  }
+
+  /**
+   * Moves nextSlot to the next record, pinning the next pages as needed.
+   * Returns false, with nothing pinned, when there are no more records.
+   */
+  private boolean moveToRecord() {
+    while (true) {
+      if (currentPageId != null) {
+        for (; nextSlot < slotCnt; nextSlot++) {
+          if (isMatch(nextSlot)) {
+            return true;
+          }
+        }
+        bufMgr.unpinPage(currentPageId, false);
+        currentPageId = null;
+      }
+      if (++pageIndex >= pageOrder.length) {
+        pageIndex = pageOrder.length;
+        return false;
+      }
+      PageId pid = new PageId(pageOrder[pageIndex]);
+      readAhead();
+      bufMgr.pinPage(pid, currentPage, false);
+      currentPageId = pid;
+      pageData = currentPage.getData();
+      slotCnt = Convert.getShortValue(HFPage.SLOT_CNT, pageData);
+      nextSlot = 0;
+    }
+  }
+
   /**
    * Called by the garbage collector when there are no more references to the
    * object; closes the scan if it's still open.
@@ -82,20 +167,19 @@ public class HeapScan implements GlobalConst {
           bufMgr.unpinPage(currentPageId, false);
       }
       isScanOpen = false;
-      currentPage = null;
       currentPageId = null;
-      currentRid = null;
-      isScanOpen = false;
+      pageData = null;
   }
 
   }
 
   /**
-   * Returns true if there are more records to scan, false otherwise.
+   * Returns true if there are more records to scan, false otherwise.  The
+   * view last handed out may no longer be good afterwards.
    */
   public boolean hasNext() {
     //PUT YOUR CODE HERE
-    return isScanOpen && currentRid != null;
+    return isScanOpen && moveToRecord();
   }
 
   /**
@@ -107,49 +191,95 @@ public class HeapScan implements GlobalConst {
             * @throws IllegalStateException if the scan has no more elements
             */
   public Tuple getNext(RID rid) throws PageUnpinnedException, BufferPoolExceededException {
-    //System.err.println("Getting next record");
+    if (!isScanOpen || !moveToRecord()) {
+      return null;
+    }
+    int pos = HFPage.HEADER_SIZE + nextSlot * HFPage.SLOT_SIZE;
+    int length = Convert.getShortValue(pos, pageData);
+    int offset = Convert.getShortValue(pos + 2, pageData);
+    byte[] record = new byte[length];
+    System.arraycopy(pageData, offset, record, 0, length);
+    rid.pageno = new PageId(currentPageId.pid);
+    rid.slotno = nextSlot++;
+    return new Tuple(record, 0, length);
+  }
+
+  /**
+   * Gets the next record in the file scan as a view into the pinned page.
+   * The same view is returned every time, and is only good until the next
+   * call on the scan.
+   *
+   * @return the view, or null if the scan has no more records
+   */
+  public TupleView getNextView() {
+    if (!isScanOpen || !moveToRecord()) {
+      return null;
+    }
+    int pos = HFPage.HEADER_SIZE + nextSlot * HFPage.SLOT_SIZE;
+    view.set(pageData, Convert.getShortValue(pos + 2, pageData),
+             Convert.getShortValue(pos, pageData), currentPageId.pid, nextSlot++);
+    return view;
+  }
+
+  /**
+   * Fills a batch with the next records of the scan, as many as it holds.
+   * Each page's slots are gone through in one loop, and the records are
+   * copied into the batch, so it stays good after the pages are unpinned.
+   *
+   * @return the number of records in the batch, 0 if the scan has no more
+   */
+  public int nextBatch(RecordBatch batch) {
+    batch.clear();
     if (!isScanOpen) {
-        //System.err.println("Scan is closed");
-        //throw new IllegalStateException("No more records");
-        return null;
+      return 0;
     }
-    while (currentPage != null &&currentRid == null) {
-      //System.err.println("Moving to next page");
-      bufMgr.unpinPage(currentPageId, false);
-
-      PageId nextPageId = currentPage.getNextPage();
-      //currentPageId = nextPageId;
-      
-      if (nextPageId.pid == -1) {
-          currentPage = null; 
-          currentPageId = new PageId();  
-          break;
-          
-      } else {
-        Page nextPage = new Page();
-        bufMgr.pinPage(nextPageId, nextPage, false);
-
-        currentPage = new HFPage(nextPage);
-        currentPageId = nextPageId;
-
-        currentRid = currentPage.firstRecord();
+    while (!batch.isFull() && moveToRecord()) {
+      for (; nextSlot < slotCnt && !batch.isFull(); nextSlot++) {
+        if (isMatch(nextSlot)) {
+          int pos = HFPage.HEADER_SIZE + nextSlot * HFPage.SLOT_SIZE;
+          batch.add(pageData, Convert.getShortValue(pos + 2, pageData),
+                    Convert.getShortValue(pos, pageData), currentPageId.pid, nextSlot);
+        }
       }
     }
-    
-    if (currentRid == null || currentPage == null) {
-      return null; // this is where it is returning null
+    return batch.size();
+  }
+
+  /**
+   * Once the scan is half way through the pages read ahead, has the next
+   * READ_AHEAD pages read in the background.
+   */
+  private void readAhead() {
+    if (pageIndex + READ_AHEAD / 2 < readAheadEnd || readAheadEnd >= pageOrder.length) {
+      return;
+    }
+    final int from = Math.max(readAheadEnd, pageIndex + 1);
+    final int to = Math.min(from + READ_AHEAD, pageOrder.length);
+    readAheadEnd = to;
+    if (from < to) {
+      readAheadThread.execute(() -> readRuns(from, to));
     }
+  }
 
-    
-    byte[] record = currentPage.selectRecord(currentRid);
-    Tuple tuple = new Tuple(record, 0, record.length);
-    rid.pageno = currentRid.pageno;
-    rid.slotno = currentRid.slotno;
-    
-    currentRid = currentPage.nextRecord(currentRid);
-    
-    
-    return tuple;
+  /**
+   * Reads pageOrder[from] to pageOrder[to - 1] from the disk, one read for
+   * each run of adjacent pages.  The bytes are thrown away; a read that
+   * fails only means the scan reads the page itself.
+   */
+  private void readRuns(int from, int to) {
+    ByteBuffer buf = ByteBuffer.allocate(READ_AHEAD * PAGE_SIZE);
+    try {
+      for (int i = from; i < to && isScanOpen; ) {
+        int start = i;
+        while (++i < to && pageOrder[i] == pageOrder[i - 1] + 1) {
+        }
+        buf.clear();
+        buf.limit((i - start) * PAGE_SIZE);
+        PageRuns.read_ahead(heapFile.diskMgr, new PageId(pageOrder[start]), buf);
+      }
+    } catch (IOException e) {
+      //read-ahead is only a hint
+    }
   }
 
 } // public class HeapScan implements GlobalConst
@@ -1,12 +1,13 @@
 package heap;
-import chainexception.ChainException;
+import chainexception.*;
 
-public class InvalidUpdateException extends Throwable {
+public class InvalidUpdateException extends ChainException {
+
+  public InvalidUpdateException()
+  { super(); }
+
+  public InvalidUpdateException(Exception ex, String name)
+  { super(ex, name); }
 
-        public InvalidUpdateException(Exception ex, String name)
-        { 
-          super(name); 
-        }
-       
 
 }
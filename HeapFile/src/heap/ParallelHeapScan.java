@@ -0,0 +1,132 @@
+package heap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bufmgr.*;
+import chainexception.ChainException;
+import global.*;
+
+/**
+ * A scan of a heap file by several threads at once.  The file's data pages
+ * are taken from its directory and handed out one at a time, in ascending
+ * page order, through a shared cursor, so that threads which get pages with fewer records simply
+ * take more of them.  Each thread pins its own pages, and hands every
+ * record on them to a visitor.
+ *
+ * The buffer manager is not thread-safe, so pins and unpins are made while
+ * holding its lock; records are read from the pinned pages without it.  The
+ * file must not be changed while the scan runs.
+ */
+public class ParallelHeapScan implements GlobalConst {
+
+  /**
+   * Receives the records of a parallel scan.  It is called from several
+   * threads at once, in no particular order.
+   */
+  public interface RecordVisitor {
+    void visit(RID rid, Tuple tuple) throws Exception;
+  }
+
+  private HeapFile heapFile;
+  private BufMgr bufMgr;
+  private int parallelism;
+
+  /**
+   * Constructs a parallel scan of a heap file, with the given number of
+   * threads.  Made only through openParallelScan() in the HeapFile class.
+   */
+  protected ParallelHeapScan(HeapFile hf, int parallelism) {
+    this.heapFile = hf;
+    this.bufMgr = hf.bufMgr;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * Hands every record of the file to the visitor, and returns once all
+   * have been visited.  If the visitor throws, the scan stops as soon as the
+   * other threads are done with their current pages.
+   *
+   * @return the number of records visited
+   * @throws ChainException if a page could not be read, or the visitor threw
+   */
+  public long forEach(final RecordVisitor visitor) throws ChainException {
+    final int[] pages = heapFile.directory.getPhysicalOrder();
+    final AtomicInteger cursor = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      List<Future<Long>> workers = new ArrayList<>();
+      for (int i = 0; i < Math.min(parallelism, pages.length); i++) {
+        workers.add(pool.submit(() -> {
+          long count = 0;
+          Page page = new Page();
+          int next;
+          while (!failed.get() && (next = cursor.getAndIncrement()) < pages.length) {
+            try {
+              count += visitPage(new PageId(pages[next]), page, visitor);
+            } catch (Exception e) {
+              failed.set(true);
+              throw e;
+            }
+          }
+          return count;
+        }));
+      }
+
+      //wait for every thread, so that none still has a page pinned
+      long count = 0;
+      ExecutionException failure = null;
+      for (Future<Long> w : workers) {
+        try {
+          count += w.get();
+        } catch (ExecutionException e) {
+          failure = (failure == null) ? e : failure;
+        }
+      }
+      if (failure != null) {
+        Throwable cause = failure.getCause();
+        if (cause instanceof ChainException) {
+          throw (ChainException) cause;
+        }
+        throw new ChainException(cause instanceof Exception ? (Exception) cause : failure,
+                                 "ParallelHeapScan: scan failed");
+      }
+      return count;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ChainException(e, "ParallelHeapScan: interrupted");
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Pins a data page, visits its records and unpins it.
+   */
+  private int visitPage(PageId pid, Page page, RecordVisitor visitor) throws Exception {
+    synchronized (bufMgr) {
+      bufMgr.pinPage(pid, page, false);
+    }
+    try {
+      HFPage hfPage = new HFPage(page);
+      int count = 0;
+      for (RID rid = hfPage.firstRecord(); rid != null; rid = hfPage.nextRecord(rid)) {
+        byte[] record = hfPage.selectRecord(rid);
+        visitor.visit(rid, new Tuple(record, 0, record.length));
+        count++;
+      }
+      return count;
+    } finally {
+      synchronized (bufMgr) {
+        bufMgr.unpinPage(pid, false);
+      }
+    }
+  }
+}
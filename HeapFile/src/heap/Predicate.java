@@ -0,0 +1,221 @@
+package heap;
+
+import global.*;
+
+/**
+ * A condition on the records of a heap file, evaluated on the record's
+ * bytes where they lie, so that a scan given one (HeapFile.openScan) skips
+ * the records it rejects without copying them out of the page.
+ *
+ * A comparison reads a field at a fixed position in the record, of one of
+ * the AttrTypes, and compares it with a constant by one of the
+ * AttrOperators: integers and floats are 4 bytes, strings are as long as
+ * given, compared byte by byte with leading and trailing blanks and zero
+ * bytes left out, as Convert.getStringValue() trims them.  Comparisons
+ * are combined with and(), or() and not(), as LogicalOperator's lopAND,
+ * lopOR and lopNOT would combine them.
+ */
+public abstract class Predicate {
+
+  /**
+   * Tells whether the record of the given length at the given position in
+   * the array satisfies the predicate.
+   */
+  public abstract boolean matches(byte[] data, int offset, int length);
+
+  /**
+   * Tells whether a record satisfies the predicate.
+   */
+  public boolean matches(byte[] record) {
+    return matches(record, 0, record.length);
+  }
+
+  /**
+   * Compares an integer field with a constant.
+   */
+  public static Predicate compare(int fieldOffset, int attrOperator, int value) {
+    return new IntComparison(fieldOffset, attrOperator, value);
+  }
+
+  /**
+   * Compares a float field with a constant.
+   */
+  public static Predicate compare(int fieldOffset, int attrOperator, float value) {
+    return new FloatComparison(fieldOffset, attrOperator, value);
+  }
+
+  /**
+   * Compares a string field of the given length with a constant.
+   */
+  public static Predicate compare(int fieldOffset, int strLength, int attrOperator,
+                                  String value) {
+    return new StringComparison(fieldOffset, strLength, attrOperator, value);
+  }
+
+  /**
+   * Compares a field of the given AttrType with a constant, an Integer,
+   * Float or String to match.  The length is only used for strings.
+   *
+   * @throws IllegalArgumentException if the type is not one of INTEGER,
+   * FLOAT and STRING, or the value does not match it
+   */
+  public static Predicate compare(int attrType, int fieldOffset, int fieldLength,
+                                  int attrOperator, Object value) {
+    if (attrType == AttrType.INTEGER && value instanceof Integer) {
+      return compare(fieldOffset, attrOperator, ((Integer) value).intValue());
+    } else if (attrType == AttrType.FLOAT && value instanceof Number) {
+      return compare(fieldOffset, attrOperator, ((Number) value).floatValue());
+    } else if (attrType == AttrType.STRING && value instanceof String) {
+      return compare(fieldOffset, fieldLength, attrOperator, (String) value);
+    }
+    throw new IllegalArgumentException("Cannot compare " + AttrType.toString(attrType)
+                                       + " field with " + value);
+  }
+
+  /**
+   * Satisfied when all of the given predicates are.
+   */
+  public static Predicate and(final Predicate... predicates) {
+    return new Predicate() {
+      public boolean matches(byte[] data, int offset, int length) {
+        for (Predicate p : predicates) {
+          if (!p.matches(data, offset, length)) {
+            return false;
+          }
+        }
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Satisfied when any of the given predicates is.
+   */
+  public static Predicate or(final Predicate... predicates) {
+    return new Predicate() {
+      public boolean matches(byte[] data, int offset, int length) {
+        for (Predicate p : predicates) {
+          if (p.matches(data, offset, length)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Satisfied when the given predicate is not.
+   */
+  public static Predicate not(final Predicate predicate) {
+    return new Predicate() {
+      public boolean matches(byte[] data, int offset, int length) {
+        return !predicate.matches(data, offset, length);
+      }
+    };
+  }
+
+  /**
+   * Tells whether a comparison came out as the operator asks.
+   */
+  protected static boolean test(int attrOperator, int cmp) {
+    switch (attrOperator) {
+      case AttrOperator.EQ:
+        return cmp == 0;
+      case AttrOperator.NEQ:
+        return cmp != 0;
+      case AttrOperator.GT:
+        return cmp > 0;
+      case AttrOperator.GTE:
+        return cmp >= 0;
+      case AttrOperator.LT:
+        return cmp < 0;
+      case AttrOperator.LTE:
+        return cmp <= 0;
+      default:
+        throw new IllegalArgumentException("Unknown operator " + attrOperator);
+    }
+  }
+
+  private static void checkOperator(int attrOperator) {
+    test(attrOperator, 0);
+  }
+
+  private static class IntComparison extends Predicate {
+    private final int fieldOffset;
+    private final int op;
+    private final int value;
+
+    IntComparison(int fieldOffset, int op, int value) {
+      checkOperator(op);
+      this.fieldOffset = fieldOffset;
+      this.op = op;
+      this.value = value;
+    }
+
+    public boolean matches(byte[] data, int offset, int length) {
+      if (fieldOffset + 4 > length) {
+        return false;
+      }
+      return test(op, Integer.compare(Convert.getIntValue(offset + fieldOffset, data), value));
+    }
+  }
+
+  private static class FloatComparison extends Predicate {
+    private final int fieldOffset;
+    private final int op;
+    private final float value;
+
+    FloatComparison(int fieldOffset, int op, float value) {
+      checkOperator(op);
+      this.fieldOffset = fieldOffset;
+      this.op = op;
+      this.value = value;
+    }
+
+    public boolean matches(byte[] data, int offset, int length) {
+      if (fieldOffset + 4 > length) {
+        return false;
+      }
+      return test(op, Float.compare(Convert.getFloatValue(offset + fieldOffset, data), value));
+    }
+  }
+
+  private static class StringComparison extends Predicate {
+    private final int fieldOffset;
+    private final int strLength;
+    private final int op;
+    private final byte[] value;
+
+    StringComparison(int fieldOffset, int strLength, int op, String value) {
+      checkOperator(op);
+      this.fieldOffset = fieldOffset;
+      this.strLength = strLength;
+      this.op = op;
+      this.value = value.trim().getBytes();
+    }
+
+    public boolean matches(byte[] data, int offset, int length) {
+      if (fieldOffset >= length) {
+        return false;
+      }
+      int from = offset + fieldOffset;
+      int to = offset + Math.min(fieldOffset + strLength, length);
+      while (from < to && (data[from] & 0xff) <= ' ') {
+        from++;
+      }
+      while (to > from && (data[to - 1] & 0xff) <= ' ') {
+        to--;
+      }
+      int n = Math.min(to - from, value.length);
+      int cmp = 0;
+      for (int i = 0; i < n && cmp == 0; i++) {
+        cmp = (data[from + i] & 0xff) - (value[i] & 0xff);
+      }
+      if (cmp == 0) {
+        cmp = (to - from) - value.length;
+      }
+      return test(op, cmp);
+    }
+  }
+}
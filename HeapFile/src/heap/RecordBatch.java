@@ -0,0 +1,119 @@
+package heap;
+
+import global.*;
+
+/**
+ * A batch of records filled by HeapScan.nextBatch().  The records are
+ * copied one after another into a buffer of the batch's own, and where each
+ * starts, how long it is and its page and slot are kept in int arrays, so
+ * that an operator can loop over a whole batch without a call per record.
+ * A batch is meant to be reused: filling it again allocates nothing once
+ * its buffer is large enough.
+ */
+public class RecordBatch {
+
+  /** Records a batch holds unless told otherwise. */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private byte[] data;
+  private int used = 0;
+  private int[] offsets;
+  private int[] lengths;
+  private int[] pagenos;
+  private int[] slotnos;
+  private int count = 0;
+
+  public RecordBatch() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public RecordBatch(int capacity) {
+    capacity = Math.max(1, capacity);
+    data = new byte[capacity * 32];
+    offsets = new int[capacity];
+    lengths = new int[capacity];
+    pagenos = new int[capacity];
+    slotnos = new int[capacity];
+  }
+
+  /** Empties the batch. */
+  public void clear() {
+    count = 0;
+    used = 0;
+  }
+
+  public boolean isFull() {
+    return count == offsets.length;
+  }
+
+  /** Returns the number of records in the batch. */
+  public int size() {
+    return count;
+  }
+
+  /** Returns the most records the batch holds. */
+  public int capacity() {
+    return offsets.length;
+  }
+
+  /** Copies a record into the batch. */
+  void add(byte[] src, int offset, int length, int pageno, int slotno) {
+    if (used + length > data.length) {
+      byte[] grown = new byte[Math.max(data.length * 2, used + length)];
+      System.arraycopy(data, 0, grown, 0, used);
+      data = grown;
+    }
+    System.arraycopy(src, offset, data, used, length);
+    offsets[count] = used;
+    lengths[count] = length;
+    pagenos[count] = pageno;
+    slotnos[count] = slotno;
+    used += length;
+    count++;
+  }
+
+  /**
+   * Returns the buffer the records are in.  The arrays below are indexed by
+   * record, and only their first size() entries are in use.
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  public int[] getOffsets() {
+    return offsets;
+  }
+
+  public int[] getLengths() {
+    return lengths;
+  }
+
+  public int[] getPageNos() {
+    return pagenos;
+  }
+
+  public int[] getSlotNos() {
+    return slotnos;
+  }
+
+  /** Fills in the given RID with the id of record i. */
+  public RID getRid(int i, RID rid) {
+    if (rid.pageno == null) {
+      rid.pageno = new PageId(pagenos[i]);
+    } else {
+      rid.pageno.pid = pagenos[i];
+    }
+    rid.slotno = slotnos[i];
+    return rid;
+  }
+
+  /** Returns the int at the given position in record i. */
+  public int getIntValue(int i, int position) {
+    return Convert.getIntValue(offsets[i] + position, data);
+  }
+
+  /** Returns the float at the given position in record i. */
+  public float getFloatValue(int i, int position) {
+    return Convert.getFloatValue(offsets[i] + position, data);
+  }
+}
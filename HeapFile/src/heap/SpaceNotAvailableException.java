@@ -0,0 +1,10 @@
+package heap;
+import chainexception.*;
+
+public class SpaceNotAvailableException extends ChainException {
+
+  public SpaceNotAvailableException(String name)
+  { super(null, name); }
+
+
+}
@@ -0,0 +1,104 @@
+package heap;
+
+import global.*;
+
+/**
+ * A record seen in place: the array it is in, where it starts and how long
+ * it is, and the page and slot it came from, kept as plain ints.  A scan
+ * hands out the same view for every record, pointing into the pinned
+ * frame, so it is only good until the next call on the scan; copy out
+ * what must be kept, or use toTuple().
+ */
+public class TupleView {
+
+  private byte[] data;
+  private int offset;
+  private int length;
+  private int pageno = INVALID;
+  private int slotno = -1;
+
+  /** a buffer of the view's own, for records copied out of a page */
+  private byte[] own;
+
+  private static final int INVALID = GlobalConst.INVALID_PAGEID;
+
+  public TupleView() {
+  }
+
+  /** Points the view at a record. */
+  void set(byte[] data, int offset, int length, int pageno, int slotno) {
+    this.data = data;
+    this.offset = offset;
+    this.length = length;
+    this.pageno = pageno;
+    this.slotno = slotno;
+  }
+
+  /** Copies a record into the view's own buffer, and points the view at it. */
+  void copy(byte[] data, int offset, int length, int pageno, int slotno) {
+    if (own == null || own.length < length) {
+      own = new byte[Math.max(length, GlobalConst.MAX_TUPSIZE)];
+    }
+    System.arraycopy(data, offset, own, 0, length);
+    set(own, 0, length, pageno, slotno);
+  }
+
+  /** Returns the array the record is in; it starts at getOffset(). */
+  public byte[] getData() {
+    return data;
+  }
+
+  public int getOffset() {
+    return offset;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public int getPageNo() {
+    return pageno;
+  }
+
+  public int getSlotNo() {
+    return slotno;
+  }
+
+  /** Fills in the given RID with the record's id. */
+  public RID getRid(RID rid) {
+    if (rid.pageno == null) {
+      rid.pageno = new PageId(pageno);
+    } else {
+      rid.pageno.pid = pageno;
+    }
+    rid.slotno = slotno;
+    return rid;
+  }
+
+  /** Returns the int at the given position in the record. */
+  public int getIntValue(int position) {
+    return Convert.getIntValue(offset + position, data);
+  }
+
+  /** Returns the float at the given position in the record. */
+  public float getFloatValue(int position) {
+    return Convert.getFloatValue(offset + position, data);
+  }
+
+  /** Returns the short at the given position in the record. */
+  public short getShortValue(int position) {
+    return Convert.getShortValue(offset + position, data);
+  }
+
+  /** Returns the string of the given length at the given position. */
+  public String getStringValue(int position, int strLength) {
+    return Convert.getStringValue(offset + position, data, strLength);
+  }
+
+  /** Returns a copy of the record as a tuple of its own. */
+  public Tuple toTuple() {
+    byte[] record = new byte[length];
+    System.arraycopy(data, offset, record, 0, length);
+    return new Tuple(record, 0, length);
+  }
+}
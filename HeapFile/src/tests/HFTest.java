@@ -1,14 +1,26 @@
 package tests;
 
+import global.AttrOperator;
+import global.AttrType;
 import global.Convert;
 import global.GlobalConst;
 import global.Minibase;
 import global.RID;
+import heap.BulkLoader;
 import heap.HeapFile;
 import heap.HeapScan;
+import heap.ParallelHeapScan;
+import heap.Predicate;
+import heap.RecordBatch;
 import heap.Tuple;
+import heap.TupleView;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
 
 import chainexception.ChainException;
 
@@ -607,10 +619,137 @@ class HFDriver extends TestDriver implements GlobalConst
 
 	}
 
-	//deal with variable size records.  it's probably easier to re-write
-	//one instead of using the ones from C++
 	protected boolean test5 () {
-		return true;
+
+		System.out.println ("\n  Test 5: Bulk load records\n");
+		boolean status = OK;
+		HeapFile f = null;
+		int fixedCnt = 3 * choice, csvCnt = 2 * choice;
+		int total = 1 + choice + fixedCnt + csvCnt;
+
+		System.out.println ("  - Load fixed-size and CSV records, inserting "
+				+ "records before and during the load\n");
+		try {
+			f = new HeapFile("file_5");
+			f.insertRecord(bulkRecord(5000));
+
+			ByteArrayOutputStream fixed = new ByteArrayOutputStream();
+			for (int i = 0; i < fixedCnt; i++) {
+				fixed.write(bulkRecord(i));
+			}
+			StringBuilder csv = new StringBuilder();
+			for (int i = 0; i < csvCnt; i++) {
+				csv.append(1000 + i).append(',').append((1000 + i) * 2.5)
+					.append(",\"record").append(1000 + i).append("\"\n");
+			}
+
+			BulkLoader loader = new BulkLoader(f, 4);
+			if (loader.loadFixed(new ByteArrayInputStream(fixed.toByteArray()),
+					reclen) != fixedCnt) {
+				status = FAIL;
+				System.err.println ("*** loadFixed did not load every record\n");
+			}
+			// enough to add pages to the file while the load is open
+			for (int i = 1; i <= choice; i++) {
+				f.insertRecord(bulkRecord(5000 + i));
+			}
+			if (loader.loadCsv(new StringReader(csv.toString()),
+					new int[] { AttrType.INTEGER, AttrType.FLOAT, AttrType.STRING },
+					new int[] { reclen - 8 }) != csvCnt) {
+				status = FAIL;
+				System.err.println ("*** loadCsv did not load every record\n");
+			}
+			loader.finish();
+		}
+		catch (Exception e) {
+			status = FAIL;
+			System.err.println ("*** Error loading records\n");
+			e.printStackTrace();
+		}
+
+		if ( status == OK ) {
+			System.out.println ("  - Check the loaded file, then reopen it\n");
+			status = checkBulkFile(f, total);
+		}
+		if ( status == OK ) {
+			try {
+				f = new HeapFile("file_5");
+			}
+			catch (Exception e) {
+				status = FAIL;
+				System.err.println ("*** Could not reopen heap file\n");
+				e.printStackTrace();
+			}
+		}
+		if ( status == OK ) {
+			status = checkBulkFile(f, total);
+		}
+
+		if ( status == OK )
+			System.out.println ("  Test 5 completed successfully.\n");
+		return status;
+	}
+
+	/** the record test 5 stores for a value */
+	protected byte [] bulkRecord (int i) throws IOException {
+		DummyRecord rec = new DummyRecord(reclen);
+		rec.ival = i;
+		rec.fval = (float) (i*2.5);
+		rec.name = "record" + i;
+		return rec.toByteArray();
+	}
+
+	/** checks the count, a full scan and the page chain of test 5's file */
+	protected boolean checkBulkFile (HeapFile f, int total) {
+
+		boolean status = OK;
+		int scanned = 0;
+		RID rid = new RID();
+		try {
+			if ( f.getRecCnt() != total ) {
+				status = FAIL;
+				System.err.println ("*** File reports " + f.getRecCnt() +
+						" records, not " + total + "\n");
+			}
+
+			HeapScan scan = f.openScan();
+			Tuple tuple;
+			while ( status == OK && (tuple = scan.getNext(rid)) != null ) {
+				DummyRecord rec = new DummyRecord(tuple);
+				if ( rec.fval != (float) (rec.ival*2.5)
+						|| !rec.name.equals("record" + rec.ival) ) {
+					status = FAIL;
+					System.err.println ("*** Record " + rec.ival
+							+ " differs from what was loaded\n");
+				}
+				scanned++;
+			}
+			scan.close();
+			if ( status == OK && scanned != total ) {
+				status = FAIL;
+				System.err.println ("*** Scanned " + scanned + " records instead of "
+						+ total + "\n");
+			}
+
+			// every page must point back to the page before it in the chain
+			int chained = f.checkPageChain();
+			if ( status == OK && chained != total ) {
+				status = FAIL;
+				System.err.println ("*** The page chain holds " + chained
+						+ " records instead of " + total + "\n");
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			e.printStackTrace();
+		}
+
+		if ( status == OK && Minibase.BufferManager.getNumUnpinned()
+				!= Minibase.BufferManager.getNumBuffers() ) {
+			System.err.println ("*** The heap file has left pages pinned\n");
+			status = FAIL;
+		}
+		return status;
 	}
 
 
@@ -747,6 +886,13 @@ class HFDriver extends TestDriver implements GlobalConst
 			}
 		}
 
+		try {
+			if (scan != null) {
+				scan.close();
+			}
+		} catch (ChainException e1) {
+			e1.printStackTrace();
+		}
 		scan = null;
 
 		if ( status == OK ) {
@@ -782,7 +928,196 @@ class HFDriver extends TestDriver implements GlobalConst
 
 	protected boolean test6 () {
 
-		return true;
+		System.out.println ("\n  Test 6: Scan with predicates, views, batches "
+				+ "and threads\n");
+		boolean status = OK;
+		HeapFile f = null;
+		int count = 4 * choice;
+
+		System.out.println ("  - Insert " + count + " records, then delete "
+				+ "every third\n");
+		try {
+			f = new HeapFile("file_6");
+			byte [][] records = new byte [count][];
+			for (int i = 0; i < count; i++) {
+				records[i] = bulkRecord(i);
+			}
+			RID [] rids = f.insertRecords(records, null);
+			for (int i = 0; i < count; i += 3) {
+				f.deleteRecord(rids[i]);
+			}
+		}
+		catch (Exception e) {
+			status = FAIL;
+			System.err.println ("*** Error building the file\n");
+			e.printStackTrace();
+		}
+
+		// live records are those not deleted above
+		final IntPredicate live = i -> i % 3 != 0;
+		int strLen = reclen - 8;
+
+		if ( status == OK ) {
+			System.out.println ("  - Scan with int, float and string comparisons\n");
+			status = checkPredicate(f, "int < 100",
+					Predicate.compare(0, AttrOperator.LT, 100),
+					i -> live.test(i) && i < 100)
+				&& checkPredicate(f, "int >= 250",
+					Predicate.compare(0, AttrOperator.GTE, 250),
+					i -> live.test(i) && i >= 250)
+				&& checkPredicate(f, "int != 43",
+					Predicate.compare(AttrType.INTEGER, 0, 4, AttrOperator.NEQ, 43),
+					i -> live.test(i) && i != 43)
+				&& checkPredicate(f, "float > 500",
+					Predicate.compare(4, AttrOperator.GT, 500f),
+					i -> live.test(i) && i * 2.5f > 500f)
+				&& checkPredicate(f, "float <= 25",
+					Predicate.compare(4, AttrOperator.LTE, 25f),
+					i -> live.test(i) && i * 2.5f <= 25f)
+				&& checkPredicate(f, "string = record43",
+					Predicate.compare(8, strLen, AttrOperator.EQ, "record43"),
+					i -> live.test(i) && i == 43)
+				&& checkPredicate(f, "string = record42 (deleted)",
+					Predicate.compare(8, strLen, AttrOperator.EQ, "record42"),
+					i -> false)
+				&& checkPredicate(f, "string < record2",
+					Predicate.compare(AttrType.STRING, 8, strLen, AttrOperator.LT,
+						"record2"),
+					i -> live.test(i) && ("record" + i).compareTo("record2") < 0);
+		}
+
+		if ( status == OK ) {
+			System.out.println ("  - Scan with and, or and not\n");
+			status = checkPredicate(f, "50 <= int and float < 300",
+					Predicate.and(Predicate.compare(0, AttrOperator.GTE, 50),
+						Predicate.compare(4, AttrOperator.LT, 300f)),
+					i -> live.test(i) && i >= 50 && i * 2.5f < 300f)
+				&& checkPredicate(f, "int < 10 or string = record" + (count - 1),
+					Predicate.or(Predicate.compare(0, AttrOperator.LT, 10),
+						Predicate.compare(8, strLen, AttrOperator.EQ,
+							"record" + (count - 1))),
+					i -> live.test(i) && (i < 10 || i == count - 1))
+				&& checkPredicate(f, "not int < 200",
+					Predicate.not(Predicate.compare(0, AttrOperator.LT, 200)),
+					i -> live.test(i) && i >= 200);
+		}
+
+		if ( status == OK ) {
+			System.out.println ("  - Count records through views, batches and "
+					+ "a parallel scan\n");
+			try {
+				int recCnt = f.getRecCnt();
+				int expected = 0;
+				for (int i = 0; i < count; i++) {
+					if (live.test(i)) {
+						expected++;
+					}
+				}
+				if ( recCnt != expected ) {
+					status = FAIL;
+					System.err.println ("*** File reports " + recCnt
+							+ " records, not " + expected + "\n");
+				}
+
+				int views = 0;
+				HeapScan scan = f.openScan();
+				TupleView view;
+				while ( (view = scan.getNextView()) != null ) {
+					if ( !live.test(view.getIntValue(0)) ) {
+						status = FAIL;
+						System.err.println ("*** getNextView returned deleted record "
+								+ view.getIntValue(0) + "\n");
+					}
+					views++;
+				}
+				scan.close();
+
+				int batched = 0;
+				RecordBatch batch = new RecordBatch(64);
+				scan = f.openScan();
+				while ( scan.nextBatch(batch) > 0 ) {
+					for (int i = 0; i < batch.size(); i++) {
+						if ( !live.test(batch.getIntValue(i, 0)) ) {
+							status = FAIL;
+							System.err.println ("*** nextBatch returned deleted record "
+									+ batch.getIntValue(i, 0) + "\n");
+						}
+					}
+					batched += batch.size();
+				}
+				scan.close();
+
+				final AtomicInteger visited = new AtomicInteger();
+				long reported = f.openParallelScan(4).forEach(
+					new ParallelHeapScan.RecordVisitor() {
+						public void visit(RID rid, Tuple tuple) {
+							visited.incrementAndGet();
+						}
+					});
+
+				if ( views != recCnt || batched != recCnt
+						|| visited.get() != recCnt || reported != recCnt ) {
+					status = FAIL;
+					System.err.println ("*** getNextView saw " + views + ", nextBatch "
+							+ batched + ", forEach " + visited.get() + " (reported "
+							+ reported + ") of " + recCnt + " records\n");
+				}
+			}
+			catch (Exception e) {
+				status = FAIL;
+				e.printStackTrace();
+			}
+		}
+
+		if ( status == OK && Minibase.BufferManager.getNumUnpinned()
+				!= Minibase.BufferManager.getNumBuffers() ) {
+			System.err.println ("*** The scans have left pages pinned\n");
+			status = FAIL;
+		}
+
+		if ( status == OK )
+			System.out.println ("  Test 6 completed successfully.\n");
+		return status;
+	}
+
+	/**
+	 * Scans test 6's file with a predicate, and checks that exactly the
+	 * records the given test expects come back.
+	 */
+	protected boolean checkPredicate (HeapFile f, String what,
+			Predicate predicate, IntPredicate expected) {
+
+		int want = 0, got = 0;
+		RID rid = new RID();
+		try {
+			for (int i = 0; i < 4 * choice; i++) {
+				if (expected.test(i)) {
+					want++;
+				}
+			}
+			HeapScan scan = f.openScan(predicate);
+			Tuple tuple;
+			while ( (tuple = scan.getNext(rid)) != null ) {
+				int ival = Convert.getIntValue(0, tuple.getTupleByteArray());
+				if ( !expected.test(ival) ) {
+					System.err.println ("*** " + what + " returned record " + ival + "\n");
+					scan.close();
+					return FAIL;
+				}
+				got++;
+			}
+			scan.close();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if ( got != want ) {
+			System.err.println ("*** " + what + " returned " + got
+					+ " records, not " + want + "\n");
+			return FAIL;
+		}
+		return OK;
 	}
 
 	protected boolean runAllTests (){